@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+
+import brave.Tracing;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import omeis.providers.re.data.RegionDef;
+
+/**
+ * Pixels metadata, tile data and NGFF filesets shared by the benchmarks.
+ * Data is pseudo random but repeatable, with enough structure that it
+ * compresses roughly as much as real images do.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param pixelsType OMERO pixels type, one of <code>uint8</code>,
+     * <code>uint16</code> or <code>float</code>.
+     * @return Bits per pixel of the given type.
+     */
+    static int bitSize(String pixelsType) {
+        switch (pixelsType) {
+            case "uint8":
+                return 8;
+            case "uint16":
+                return 16;
+            case "float":
+                return 32;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported pixels type: " + pixelsType);
+        }
+    }
+
+    /**
+     * Installs no-op tracing, as the microservice does when tracing is
+     * disabled, so that spans started on the hot path cost what they do in
+     * production.
+     * @return The tracing instance which must be closed after use.
+     */
+    static Tracing tracing() {
+        Tracing tracing = Tracing.newBuilder().build();
+        tracing.setNoop(true);
+        return tracing;
+    }
+
+    /**
+     * @return Context of a square tile at the origin of the full
+     * resolution.
+     */
+    static TileCtx tileCtx(int tileSize, String format) {
+        TileCtx tileCtx = new TileCtx();
+        tileCtx.imageId = 1L;
+        tileCtx.z = 0;
+        tileCtx.c = 0;
+        tileCtx.t = 0;
+        tileCtx.region = new RegionDef(0, 0, tileSize, tileSize);
+        tileCtx.format = format;
+        return tileCtx;
+    }
+
+    /**
+     * @return Single plane {@link Pixels} of the given type and
+     * size.
+     */
+    static Pixels pixels(String pixelsType, int sizeX, int sizeY) {
+        PixelsType type = new PixelsType();
+        type.setValue(pixelsType);
+        type.setBitSize(bitSize(pixelsType));
+        Pixels pixels = new Pixels(1L, true);
+        pixels.setPixelsType(type);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        return pixels;
+    }
+
+    /**
+     * @return Big-endian pixel data of the given length: a gradient with a
+     * little noise.
+     */
+    static byte[] data(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ((i >> 6) + random.nextInt(8));
+        }
+        return data;
+    }
+
+    /**
+     * Writes a single resolution, single plane NGFF fileset with zlib
+     * compressed chunks.
+     * @param root directory to write the fileset to.
+     * @param pixelsType OMERO pixels type.
+     * @param size width and height of the plane.
+     * @param chunkSize width and height of each chunk.
+     * @throws IOException If there was an error writing.
+     */
+    static void writeZarr(
+            Path root, String pixelsType, int size, int chunkSize)
+                    throws IOException {
+        JsonArray axes = new JsonArray();
+        for (String name : new String[] { "t", "c", "z", "y", "x" }) {
+            String type = name.equals("t")? "time"
+                    : name.equals("c")? "channel" : "space";
+            axes.add(new JsonObject().put("name", name).put("type", type));
+        }
+        JsonObject dataset = new JsonObject()
+            .put("path", "0")
+            .put("coordinateTransformations", new JsonArray().add(
+                    new JsonObject()
+                        .put("type", "scale")
+                        .put("scale", new JsonArray()
+                                .add(1).add(1).add(1).add(1).add(1))));
+        JsonObject zattrs = new JsonObject().put("multiscales",
+                new JsonArray().add(new JsonObject()
+                    .put("version", "0.4")
+                    .put("axes", axes)
+                    .put("datasets", new JsonArray().add(dataset))));
+        Files.createDirectories(root);
+        write(root.resolve(".zgroup"),
+                new JsonObject().put("zarr_format", 2));
+        write(root.resolve(".zattrs"), zattrs);
+
+        int bytesPerPixel = bitSize(pixelsType) / 8;
+        String dtype = pixelsType.equals("uint8")? "|u1"
+                : pixelsType.equals("uint16")? ">u2" : ">f4";
+        JsonObject zarray = new JsonObject()
+            .put("zarr_format", 2)
+            .put("shape", new JsonArray()
+                    .add(1).add(1).add(1).add(size).add(size))
+            .put("chunks", new JsonArray()
+                    .add(1).add(1).add(1).add(chunkSize).add(chunkSize))
+            .put("dtype", dtype)
+            .put("compressor", new JsonObject()
+                    .put("id", "zlib").put("level", 1))
+            .put("fill_value", 0)
+            .put("filters", (Object) null)
+            .put("order", "C");
+        Path array = root.resolve("0");
+        Files.createDirectories(array);
+        write(array.resolve(".zarray"), zarray);
+
+        int chunks = (size + chunkSize - 1) / chunkSize;
+        int chunkBytes = chunkSize * chunkSize * bytesPerPixel;
+        for (int y = 0; y < chunks; y++) {
+            for (int x = 0; x < chunks; x++) {
+                byte[] chunk = data(chunkBytes, y * chunks + x);
+                Path path = array.resolve("0.0.0." + y + "." + x);
+                try (OutputStream out = new DeflaterOutputStream(
+                        Files.newOutputStream(path))) {
+                    out.write(chunk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a directory and everything below it.
+     */
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                path.toFile().delete();
+            });
+        }
+    }
+
+    private static void write(Path path, JsonObject json)
+            throws IOException {
+        Files.write(path, json.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.bc.zarr.ZarrArray;
+import com.bc.zarr.ZarrGroup;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.glencoesoftware.omero.zarr.ZarrPixelBuffer;
+
+/**
+ * Raw tile reads from a locally generated, zlib compressed NGFF fileset of
+ * 4096x4096 pixels in 512x512 chunks, both directly with
+ * {@link ZarrPixelBuffer#getTileDirect} and split across threads by
+ * {@link RegionReader}.  Tiles are read from the origin so those of 512
+ * pixels and above line up with the chunk grid.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark {
+
+    private static final int IMAGE_SIZE = 4096;
+
+    private static final int CHUNK_SIZE = 512;
+
+    @Param({ "uint8", "uint16", "float" })
+    public String pixelsType;
+
+    @Param({ "256", "512", "1024", "2048", "4096" })
+    public int tileSize;
+
+    private Path root;
+
+    private ZarrPixelBuffer pixelBuffer;
+
+    private RegionReader regionReader;
+
+    private int bytesPerPixel;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("omero-ms-pixel-buffer-jmh");
+        Fixtures.writeZarr(root, pixelsType, IMAGE_SIZE, CHUNK_SIZE);
+        bytesPerPixel = Fixtures.bitSize(pixelsType) / 8;
+        AsyncLoadingCache<Path, Map<String, Object>> metadataCache =
+                Caffeine.newBuilder()
+                    .buildAsync(path -> ZarrGroup.open(path).getAttributes());
+        AsyncLoadingCache<Path, ZarrArray> arrayCache =
+                Caffeine.newBuilder().buildAsync(ZarrArray::open);
+        pixelBuffer = new ZarrPixelBuffer(
+                Fixtures.pixels(pixelsType, IMAGE_SIZE, IMAGE_SIZE), root,
+                IMAGE_SIZE, IMAGE_SIZE, metadataCache, arrayCache);
+        // As configured by default
+        regionReader = new RegionReader(
+                Runtime.getRuntime().availableProcessors(), 16 * 1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        regionReader.close();
+        pixelBuffer.close();
+        Fixtures.delete(root);
+    }
+
+    /**
+     * Per thread destination buffer, as the workers reuse for encoded
+     * tiles.
+     */
+    @State(Scope.Thread)
+    public static class Destination {
+
+        byte[] buffer;
+
+        @Setup(Level.Trial)
+        public void setup(ReadBenchmark benchmark) {
+            buffer = new byte[benchmark.tileSize * benchmark.tileSize
+                              * benchmark.bytesPerPixel];
+        }
+    }
+
+    @Benchmark
+    public byte[] getTileDirect(Destination destination) throws Exception {
+        pixelBuffer.getTileDirect(
+                0, 0, 0, 0, 0, tileSize, tileSize, destination.buffer);
+        return destination.buffer;
+    }
+
+    @Benchmark
+    public byte[] regionReader(Destination destination) throws Exception {
+        regionReader.read(
+                pixelBuffer, 0, 0, 0, 0, 0, tileSize, tileSize,
+                bytesPerPixel, destination.buffer);
+        return destination.buffer;
+    }
+
+}
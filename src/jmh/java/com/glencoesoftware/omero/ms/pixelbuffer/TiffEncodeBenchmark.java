@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import brave.Tracing;
+import io.netty.buffer.ByteBuf;
+import loci.formats.meta.IMetadata;
+import ome.model.core.Pixels;
+
+/**
+ * TIFF encoding of tiles by Bio-Formats, the path taken before the built-in
+ * encoder, and by {@link TiffEncoder}, at the default compression
+ * settings, along with the construction of the metadata Bio-Formats
+ * requires.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TiffEncodeBenchmark {
+
+    @Param({ "uint8", "uint16", "float" })
+    public String pixelsType;
+
+    @Param({ "256", "512", "1024", "2048", "4096" })
+    public int tileSize;
+
+    private Tracing tracing;
+
+    private Pixels pixels;
+
+    private byte[] tile;
+
+    private int bytesPerPixel;
+
+    private IMetadata metadata;
+
+    private PngEncoder pngEncoder;
+
+    private TiffEncoder tiffEncoder;
+
+    private TileRequestHandler handler;
+
+    @Setup
+    public void setup() throws Exception {
+        tracing = Fixtures.tracing();
+        pixels = Fixtures.pixels(pixelsType, tileSize, tileSize);
+        bytesPerPixel = Fixtures.bitSize(pixelsType) / 8;
+        tile = Fixtures.data(tileSize * tileSize * bytesPerPixel, 0);
+        pngEncoder = new PngEncoder(
+                Deflater.DEFAULT_COMPRESSION, PngEncoder.Filter.NONE);
+        tiffEncoder = new TiffEncoder(TiffEncoder.Compression.NONE, null);
+        handler = new TileRequestHandler(
+                null, null, null, null, pngEncoder, tiffEncoder, null,
+                Fixtures.tileCtx(tileSize, "tif"));
+        metadata = handler.createMetadata(pixels);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracing.close();
+    }
+
+    @Benchmark
+    public IMetadata createMetadata() throws Exception {
+        return handler.createMetadata(pixels);
+    }
+
+    @Benchmark
+    public ByteBuf writeImage() throws Exception {
+        return handler.writeImage("tif", tile, metadata);
+    }
+
+    @Benchmark
+    public ByteBuf encode() throws Exception {
+        return tiffEncoder.encode(
+                tile, tileSize, tileSize, pixels.getPixelsType().getValue());
+    }
+
+}
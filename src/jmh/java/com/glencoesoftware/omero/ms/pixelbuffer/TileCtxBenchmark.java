@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+/**
+ * Parsing of tile requests and their serialization onto the event bus, paid
+ * once per tile before any pixel data is read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TileCtxBenchmark {
+
+    private final TileCtxCodec codec = new TileCtxCodec();
+
+    private MultiMap params;
+
+    private TileCtx tileCtx;
+
+    private Buffer wire;
+
+    @Setup
+    public void setup() {
+        params = MultiMap.caseInsensitiveMultiMap()
+            .add("imageId", "123456")
+            .add("z", "12")
+            .add("c", "2")
+            .add("t", "0")
+            .add("x", "1024")
+            .add("y", "2048")
+            .add("w", "512")
+            .add("h", "512")
+            .add("resolution", "3")
+            .add("format", "png");
+        tileCtx = parse();
+        wire = Buffer.buffer();
+        codec.encodeToWire(wire, tileCtx);
+    }
+
+    @Benchmark
+    public TileCtx parse() {
+        return new TileCtx(params, "ffffffff-ffff-ffff-ffff-ffffffffffff");
+    }
+
+    @Benchmark
+    public Buffer encodeToWire() {
+        Buffer buffer = Buffer.buffer(256);
+        codec.encodeToWire(buffer, tileCtx);
+        return buffer;
+    }
+
+    @Benchmark
+    public TileCtx decodeFromWire() {
+        return codec.decodeFromWire(0, wire);
+    }
+
+    /**
+     * Delivery of a context to a local worker as it was before
+     * {@link TileCtxCodec}: encoded to a JSON string and parsed back with
+     * a new {@link ObjectMapper}.
+     */
+    @Benchmark
+    public TileCtx jsonRoundTrip() throws IOException {
+        String json = Json.encode(tileCtx);
+        return new ObjectMapper().readValue(json, TileCtx.class);
+    }
+
+    /**
+     * Delivery of a context to a local worker with {@link TileCtxCodec}.
+     */
+    @Benchmark
+    public TileCtx transform() {
+        return codec.transform(tileCtx);
+    }
+
+    @Benchmark
+    public String tileKey() {
+        return tileCtx.tileKey();
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Drives a number of simulated viewers, each issuing its next request as
+ * soon as the previous one completes plus an optional think time, and
+ * records the latency of every request completed within the measurement
+ * window.  Recorded results are only read once the verticle has been
+ * undeployed.
+ * <p>
+ * Viewers move around a single plane like a person using a viewer:
+ * <ul>
+ * <li><code>pan</code>: to a neighbouring viewport at the same resolution
+ * </li>
+ * <li><code>zoom</code>: in or out by one resolution level around the same
+ * point</li>
+ * <li><code>mixed</code>: four pans for every zoom</li>
+ * <li><code>random</code>: to any viewport at any resolution, defeating
+ * caches</li>
+ * </ul>
+ * Each step requests a viewport of <code>batch</code> adjacent tiles,
+ * either as a single batch request or, if <code>batch</code> is 1, as a
+ * single tile request.
+ */
+public class LoadGenerator extends AbstractVerticle {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(LoadGenerator.class);
+
+    /** Workload options */
+    private final JsonObject options;
+
+    /** Dataset the service is reading from */
+    private final SyntheticDataset dataset;
+
+    /** OMERO.web session identifiers to spread the viewers across */
+    private final List<String> sessionIds;
+
+    /** {@link System#nanoTime()} from which requests are recorded */
+    private final long measureStart;
+
+    /** {@link System#nanoTime()} at which viewers stop */
+    private final long measureEnd;
+
+    /** Results recorded within the measurement window */
+    private final Results results = new Results();
+
+    private HttpClient client;
+
+    /**
+     * Default constructor.
+     * @param options workload options, as documented by {@link LoadTest}.
+     * @param dataset dataset the service is reading from.
+     * @param sessionIds OMERO.web session identifiers to spread the
+     * viewers across.
+     * @param measureStart {@link System#nanoTime()} from which requests
+     * are recorded.
+     * @param measureEnd {@link System#nanoTime()} at which viewers stop.
+     */
+    public LoadGenerator(
+            JsonObject options, SyntheticDataset dataset,
+            List<String> sessionIds, long measureStart, long measureEnd) {
+        this.options = options;
+        this.dataset = dataset;
+        this.sessionIds = sessionIds;
+        this.measureStart = measureStart;
+        this.measureEnd = measureEnd;
+    }
+
+    /**
+     * @return Results recorded within the measurement window.
+     */
+    public Results results() {
+        return results;
+    }
+
+    @Override
+    public void start() {
+        int viewers = options.getInteger("viewers");
+        client = vertx.createHttpClient(new HttpClientOptions()
+                .setDefaultHost(options.getString("host"))
+                .setDefaultPort(options.getInteger("port"))
+                .setKeepAlive(true)
+                .setMaxPoolSize(viewers)
+                .setMaxWaitQueueSize(-1));
+        long seed = options.getLong("seed");
+        for (int i = 0; i < viewers; i++) {
+            Viewer viewer = new Viewer(
+                    new Random(seed + i),
+                    sessionIds.get(i % sessionIds.size()));
+            viewer.next();
+        }
+    }
+
+    @Override
+    public void stop() {
+        client.close();
+    }
+
+    /**
+     * A single simulated viewer looking at one Image.
+     */
+    private class Viewer {
+
+        private final Random random;
+
+        private final String cookie;
+
+        private final long imageId;
+
+        private final int tileSize = options.getInteger("tile-size");
+
+        private final int batch = options.getInteger("batch");
+
+        private final List<Object> formats =
+                options.getJsonArray("formats").getList();
+
+        /** Width of the viewport in tiles */
+        private final int columns = (int) Math.ceil(Math.sqrt(batch));
+
+        private int resolution;
+
+        private int tileX;
+
+        private int tileY;
+
+        Viewer(Random random, String sessionId) {
+            this.random = random;
+            this.cookie = "sessionid=" + sessionId;
+            this.imageId = 1 + random.nextInt(dataset.images());
+            resolution = random.nextInt(dataset.levels());
+            tileX = random.nextInt(tiles(resolution));
+            tileY = random.nextInt(tiles(resolution));
+        }
+
+        /** Number of tiles across the plane at a resolution */
+        private int tiles(int resolution) {
+            return (dataset.size(resolution) + tileSize - 1) / tileSize;
+        }
+
+        private void next() {
+            if (System.nanoTime() >= measureEnd) {
+                return;
+            }
+            move();
+            String format = (String) formats.get(
+                    random.nextInt(formats.size()));
+            long start = System.nanoTime();
+            HttpClientRequest request;
+            if (batch == 1) {
+                request = client.request(HttpMethod.GET, uri(format));
+            } else {
+                request = client.request(
+                        HttpMethod.POST, "/tiles/" + imageId);
+            }
+            request.handler(response -> {
+                response.bodyHandler(body -> {
+                    complete(start, response.statusCode(), body.length());
+                });
+                response.exceptionHandler(t -> failed(start, t));
+            });
+            request.exceptionHandler(t -> failed(start, t));
+            request.putHeader("Cookie", cookie);
+            String acceptEncoding = options.getString("accept-encoding");
+            if (acceptEncoding != null) {
+                request.putHeader("Accept-Encoding", acceptEncoding);
+            }
+            if (batch == 1) {
+                request.end();
+            } else {
+                request.putHeader("Content-Type", "application/json");
+                request.end(Buffer.buffer(viewport(format).encode()));
+            }
+        }
+
+        private void move() {
+            String pattern = options.getString("pattern");
+            if (pattern.equals("mixed")) {
+                pattern = random.nextInt(5) == 0? "zoom" : "pan";
+            }
+            switch (pattern) {
+                case "pan":
+                    tileX += random.nextInt(3) - 1;
+                    tileY += random.nextInt(3) - 1;
+                    break;
+                case "zoom":
+                    if (resolution == dataset.levels() - 1
+                            || (resolution > 0 && random.nextBoolean())) {
+                        resolution--;
+                        tileX /= 2;
+                        tileY /= 2;
+                    } else {
+                        resolution++;
+                        tileX = tileX * 2 + random.nextInt(2);
+                        tileY = tileY * 2 + random.nextInt(2);
+                    }
+                    break;
+                case "random":
+                    resolution = random.nextInt(dataset.levels());
+                    tileX = random.nextInt(tiles(resolution));
+                    tileY = random.nextInt(tiles(resolution));
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown pattern: " + pattern);
+            }
+            int tiles = tiles(resolution);
+            tileX = Math.max(0, Math.min(tileX, tiles - 1));
+            tileY = Math.max(0, Math.min(tileY, tiles - 1));
+        }
+
+        /** Parameters of the k-th tile of the current viewport */
+        private JsonObject tile(int k, String format) {
+            int tiles = tiles(resolution);
+            int size = dataset.size(resolution);
+            int x = ((tileX + k % columns) % tiles) * tileSize;
+            int y = ((tileY + k / columns) % tiles) * tileSize;
+            JsonObject tile = new JsonObject()
+                .put("z", 0)
+                .put("c", 0)
+                .put("t", 0)
+                .put("x", x)
+                .put("y", y)
+                .put("w", Math.min(tileSize, size - x))
+                .put("h", Math.min(tileSize, size - y))
+                .put("resolution", resolution);
+            if (!format.equals("raw")) {
+                tile.put("format", format);
+            }
+            return tile;
+        }
+
+        private String uri(String format) {
+            StringBuilder uri = new StringBuilder("/tile/")
+                    .append(imageId).append("/0/0/0?");
+            tile(0, format).forEach(entry -> {
+                if (!entry.getKey().equals("z")
+                        && !entry.getKey().equals("c")
+                        && !entry.getKey().equals("t")) {
+                    uri.append(entry.getKey()).append('=')
+                        .append(entry.getValue()).append('&');
+                }
+            });
+            return uri.substring(0, uri.length() - 1);
+        }
+
+        private JsonArray viewport(String format) {
+            JsonArray viewport = new JsonArray();
+            for (int k = 0; k < batch; k++) {
+                viewport.add(tile(k, format));
+            }
+            return viewport;
+        }
+
+        private void complete(long start, int status, int bytes) {
+            long end = System.nanoTime();
+            if (start >= measureStart && end < measureEnd) {
+                results.record(end - start, status, bytes, batch);
+            }
+            schedule();
+        }
+
+        private void failed(long start, Throwable t) {
+            log.debug("Request failed", t);
+            if (start >= measureStart && System.nanoTime() < measureEnd) {
+                results.failed();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            long think = options.getLong("think-ms");
+            if (think > 0) {
+                vertx.setTimer(think, id -> next());
+            } else {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Results of the requests completed by one generator.  Only written
+     * from the generator's event loop.
+     */
+    public static class Results {
+
+        /** Latency of each request in nanoseconds */
+        private long[] latencies = new long[1 << 16];
+
+        private int count;
+
+        private long tiles;
+
+        private long bytes;
+
+        private long failures;
+
+        /** Number of responses by HTTP status */
+        private final Map<Integer, Long> statuses =
+                new TreeMap<Integer, Long>();
+
+        private void record(long latency, int status, int length, int batch) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+            if (status == 200) {
+                tiles += batch;
+            }
+            bytes += length;
+            statuses.merge(status, 1L, Long::sum);
+        }
+
+        private void failed() {
+            failures++;
+        }
+
+        /**
+         * Merges several generators' results.
+         * @param all results to merge.
+         * @return See above.
+         */
+        public static Results merge(List<Results> all) {
+            Results merged = new Results();
+            for (Results results : all) {
+                int total = merged.count + results.count;
+                if (total > merged.latencies.length) {
+                    merged.latencies = Arrays.copyOf(merged.latencies, total);
+                }
+                System.arraycopy(
+                        results.latencies, 0, merged.latencies, merged.count,
+                        results.count);
+                merged.count = total;
+                merged.tiles += results.tiles;
+                merged.bytes += results.bytes;
+                merged.failures += results.failures;
+                results.statuses.forEach((status, n) -> {
+                    merged.statuses.merge(status, n, Long::sum);
+                });
+            }
+            return merged;
+        }
+
+        /**
+         * Summarizes the results.
+         * @param seconds length of the measurement window in seconds.
+         * @return Throughput, latency percentiles in milliseconds and
+         * response counts by status.
+         */
+        public JsonObject summarize(double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            JsonObject statusCounts = new JsonObject();
+            statuses.forEach(
+                    (status, n) -> statusCounts.put(status.toString(), n));
+            return new JsonObject()
+                .put("requests", count)
+                .put("failures", failures)
+                .put("requests_per_second", count / seconds)
+                .put("tiles_per_second", tiles / seconds)
+                .put("megabytes_per_second", bytes / seconds / 1e6)
+                .put("latency_ms", new JsonObject()
+                    .put("p50", percentile(sorted, 0.5))
+                    .put("p90", percentile(sorted, 0.9))
+                    .put("p99", percentile(sorted, 0.99))
+                    .put("p999", percentile(sorted, 0.999))
+                    .put("max", count == 0? 0 : sorted[count - 1] / 1e6))
+                .put("statuses", statusCounts);
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.config.ConfigRetriever;
+import io.vertx.config.ConfigRetrieverOptions;
+import io.vertx.config.ConfigStoreOptions;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Self-contained end-to-end load test.  Runs the whole microservice, the
+ * HTTP verticle and its worker verticles, against the local stand-ins of
+ * {@link LoadTestMicroserviceVerticle} and a {@link SyntheticDataset}, drives
+ * it with {@link LoadGenerator} viewers from a separate Vert.x instance in
+ * the same JVM and reports throughput and latency percentiles.  No OMERO
+ * server, Redis or PostgreSQL is required.
+ * <p>
+ * Options are given as <code>--name=value</code>; see {@link #DEFAULTS}.
+ * The microservice is configured from <code>--config</code> exactly as in
+ * production, except that its port and, if given,
+ * <code>worker_pool_size</code> are overridden.
+ */
+public class LoadTest {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(LoadTest.class);
+
+    /** Options and their default values */
+    private static final Map<String, String> DEFAULTS =
+            new LinkedHashMap<String, String>();
+
+    static {
+        // Microservice
+        DEFAULTS.put("config", "src/dist/conf/config.yaml");
+        DEFAULTS.put("port", "18080");
+        DEFAULTS.put("worker-pool-size", "");
+        // Dataset
+        DEFAULTS.put("dataset-dir", "build/loadtest");
+        DEFAULTS.put("pixels-type", "uint16");
+        DEFAULTS.put("size", "8192");
+        DEFAULTS.put("chunk-size", "512");
+        DEFAULTS.put("levels", "5");
+        DEFAULTS.put("images", "4");
+        DEFAULTS.put("sessions", "8");
+        // Workload
+        DEFAULTS.put("viewers", "32");
+        DEFAULTS.put("generators", "2");
+        DEFAULTS.put("pattern", "mixed");
+        DEFAULTS.put("batch", "1");
+        DEFAULTS.put("formats", "raw");
+        DEFAULTS.put("tile-size", "512");
+        DEFAULTS.put("think-ms", "0");
+        DEFAULTS.put("accept-encoding", "");
+        DEFAULTS.put("seed", "0");
+        // Measurement
+        DEFAULTS.put("warmup", "10");
+        DEFAULTS.put("duration", "60");
+        DEFAULTS.put("report", "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        if (options == null) {
+            usage();
+            return;
+        }
+        JsonObject summary = new LoadTest().run(options);
+        System.out.println(format(summary));
+        String report = options.get("report");
+        if (!report.isEmpty()) {
+            Files.write(Paths.get(report), summary.encodePrettily()
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs a load test.
+     * @param options options, with defaults filled in.
+     * @return Summary of the options and the results.
+     * @throws Exception If the microservice could not be started.
+     */
+    public JsonObject run(Map<String, String> options) throws Exception {
+        int batch = Integer.parseInt(options.get("batch"));
+        List<String> formats = List.of(options.get("formats").split(","));
+        if (batch > 1 && formats.contains(PixelBufferVerticle.CHUNK_FORMAT)) {
+            throw new IllegalArgumentException(
+                    "Chunks may not be requested in a batch");
+        }
+
+        SyntheticDataset dataset = new SyntheticDataset(
+                Paths.get(options.get("dataset-dir")),
+                options.get("pixels-type"),
+                Integer.parseInt(options.get("size")),
+                Integer.parseInt(options.get("chunk-size")),
+                Integer.parseInt(options.get("levels")),
+                Integer.parseInt(options.get("images")));
+        dataset.write();
+
+        Map<String, String> sessions = new HashMap<String, String>();
+        List<String> sessionIds = new ArrayList<String>();
+        for (int i = 0; i < Integer.parseInt(options.get("sessions")); i++) {
+            sessions.put("web-session-" + i, "omero-session-" + i);
+            sessionIds.add("web-session-" + i);
+        }
+
+        Vertx server = Vertx.vertx();
+        Vertx load = Vertx.vertx();
+        boolean loadClosed = false;
+        try {
+            JsonObject config = readConfig(server, options.get("config"));
+            int port = Integer.parseInt(options.get("port"));
+            config.put("port", port);
+            if (!options.get("worker-pool-size").isEmpty()) {
+                config.put("worker_pool_size",
+                        Integer.parseInt(options.get("worker-pool-size")));
+            }
+            log.info("Starting microservice on port {}", port);
+            this.<String>await(handler -> server.deployVerticle(
+                    new LoadTestMicroserviceVerticle(dataset, sessions),
+                    new DeploymentOptions().setConfig(config), handler));
+
+            int generators = Integer.parseInt(options.get("generators"));
+            int viewers = Integer.parseInt(options.get("viewers"));
+            long warmup = Long.parseLong(options.get("warmup"));
+            long duration = Long.parseLong(options.get("duration"));
+            long measureStart = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(warmup);
+            long measureEnd = measureStart
+                    + TimeUnit.SECONDS.toNanos(duration);
+            List<LoadGenerator> deployed = new ArrayList<LoadGenerator>();
+            for (int i = 0; i < generators; i++) {
+                int share = viewers / generators
+                        + (i < viewers % generators? 1 : 0);
+                if (share == 0) {
+                    continue;
+                }
+                JsonObject workload = new JsonObject()
+                    .put("host", "localhost")
+                    .put("port", port)
+                    .put("viewers", share)
+                    .put("pattern", options.get("pattern"))
+                    .put("batch", batch)
+                    .put("formats", new JsonArray(new ArrayList<>(formats)))
+                    .put("tile-size",
+                            Integer.parseInt(options.get("tile-size")))
+                    .put("think-ms", Long.parseLong(options.get("think-ms")))
+                    .put("seed", Long.parseLong(options.get("seed"))
+                            + i * (long) viewers);
+                if (!options.get("accept-encoding").isEmpty()) {
+                    workload.put(
+                            "accept-encoding", options.get("accept-encoding"));
+                }
+                LoadGenerator generator = new LoadGenerator(
+                        workload, dataset, sessionIds, measureStart,
+                        measureEnd);
+                this.<String>await(handler -> load.deployVerticle(
+                        generator, handler));
+                deployed.add(generator);
+            }
+            log.info("{} viewers warming up for {}s then measuring for {}s",
+                    viewers, warmup, duration);
+            TimeUnit.NANOSECONDS.sleep(measureEnd - System.nanoTime());
+
+            // Closing waits for the generators' event loops, after which
+            // their results are safe to read
+            this.<Void>await(load::close);
+            loadClosed = true;
+            List<LoadGenerator.Results> results =
+                    new ArrayList<LoadGenerator.Results>();
+            for (LoadGenerator generator : deployed) {
+                results.add(generator.results());
+            }
+            JsonObject summary = LoadGenerator.Results.merge(results)
+                    .summarize(duration);
+            JsonObject effective = new JsonObject();
+            options.forEach(effective::put);
+            effective.put("worker-pool-size", config.getInteger(
+                    "worker_pool_size",
+                    Runtime.getRuntime().availableProcessors() * 2));
+            return new JsonObject()
+                .put("options", effective)
+                .put("results", summary);
+        } finally {
+            if (!loadClosed) {
+                load.close();
+            }
+            this.<Void>await(server::close);
+        }
+    }
+
+    /**
+     * Reads the microservice configuration.
+     */
+    private JsonObject readConfig(Vertx vertx, String path)
+            throws Exception {
+        ConfigStoreOptions store = new ConfigStoreOptions()
+                .setType("file")
+                .setFormat(path.endsWith(".json")? "json" : "yaml")
+                .setConfig(new JsonObject().put("path", path));
+        ConfigRetriever retriever = ConfigRetriever.create(
+                vertx, new ConfigRetrieverOptions()
+                        .setIncludeDefaultStores(false)
+                        .addStore(store));
+        JsonObject config = this.<JsonObject>await(retriever::getConfig);
+        if (!config.containsKey("omero.server")) {
+            config.put("omero.server", new JsonObject());
+        }
+        return config;
+    }
+
+    /**
+     * Waits for an asynchronous operation to complete.
+     */
+    private <T> T await(Consumer<Handler<AsyncResult<T>>> operation)
+            throws Exception {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        operation.accept(result -> {
+            if (result.succeeded()) {
+                future.complete(result.result());
+            } else {
+                future.completeExceptionally(result.cause());
+            }
+        });
+        return future.get();
+    }
+
+    /**
+     * Parses <code>--name=value</code> options over the defaults.
+     * @return See above or <code>null</code> if help was requested.
+     */
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options =
+                new LinkedHashMap<String, String>(DEFAULTS);
+        for (String arg : args) {
+            if (arg.isEmpty()) {
+                continue;
+            }
+            if (arg.equals("--help") || arg.equals("-h")) {
+                return null;
+            }
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            if (!DEFAULTS.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown option: " + name);
+            }
+            options.put(name, arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: LoadTest [--name=value ...]");
+        System.out.println();
+        DEFAULTS.forEach((name, value) -> {
+            System.out.println(String.format("  --%-18s %s", name, value));
+        });
+    }
+
+    /**
+     * Formats a summary for the console.
+     */
+    private static String format(JsonObject summary) {
+        JsonObject options = summary.getJsonObject("options");
+        JsonObject results = summary.getJsonObject("results");
+        JsonObject latency = results.getJsonObject("latency_ms");
+        return String.format(
+                "%d viewers, pattern %s, batch %s, formats %s, tile %s, " +
+                "%s workers%n" +
+                "requests: %d (%d failed), statuses: %s%n" +
+                "throughput: %.1f requests/s, %.1f tiles/s, %.1f MB/s%n" +
+                "latency (ms): p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, " +
+                "max %.2f",
+                Integer.parseInt(options.getString("viewers")),
+                options.getString("pattern"), options.getString("batch"),
+                options.getString("formats"), options.getString("tile-size"),
+                options.getValue("worker-pool-size"),
+                results.getInteger("requests"), results.getLong("failures"),
+                results.getJsonObject("statuses").encode(),
+                results.getDouble("requests_per_second"),
+                results.getDouble("tiles_per_second"),
+                results.getDouble("megabytes_per_second"),
+                latency.getDouble("p50"), latency.getDouble("p90"),
+                latency.getDouble("p99"), latency.getDouble("p999"),
+                latency.getDouble("max"));
+    }
+
+}
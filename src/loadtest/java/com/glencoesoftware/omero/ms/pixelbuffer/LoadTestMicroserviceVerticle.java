@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Verticle;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.spi.VerticleFactory;
+import io.vertx.ext.web.RoutingContext;
+import ome.io.nio.PixelsService;
+import ome.model.core.Pixels;
+
+/**
+ * {@link PixelBufferMicroserviceVerticle} with local stand-ins for
+ * everything outside the process: OMERO.web sessions are resolved from an
+ * in-memory map rather than Redis or PostgreSQL, sessions are "joined"
+ * without an OMERO server, {@link Pixels} are looked up from a
+ * {@link SyntheticDataset} rather than the database and pixel buffers are
+ * opened on that dataset.  Everything else, from the HTTP server through
+ * the event bus to the worker verticles and caches, is the real thing and
+ * configured as usual.
+ */
+public class LoadTestMicroserviceVerticle
+        extends PixelBufferMicroserviceVerticle {
+
+    /** Name of the OMERO.web session cookie */
+    private static final String SESSION_COOKIE = "sessionid";
+
+    /** Dataset standing in for the OMERO server and binary repository */
+    private final SyntheticDataset dataset;
+
+    /** OMERO session keys by OMERO.web session identifier */
+    private final Map<String, String> sessions;
+
+    /** Application context the shared caches are registered with */
+    private ConfigurableApplicationContext context;
+
+    /**
+     * Default constructor.
+     * @param dataset dataset standing in for the OMERO server.
+     * @param sessions OMERO session keys by OMERO.web session identifier.
+     */
+    public LoadTestMicroserviceVerticle(
+            SyntheticDataset dataset, Map<String, String> sessions) {
+        this.dataset = dataset;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Deploys with the configuration this verticle was deployed with
+     * rather than reading <code>conf/config.yaml</code>.
+     */
+    @Override
+    public void start(Promise<Void> prom) {
+        try {
+            deploy(config(), prom);
+        } catch (Exception e) {
+            prom.fail(e);
+        }
+    }
+
+    /**
+     * An empty context; the worker verticles are created by
+     * {@link #createVerticleFactory()} instead.
+     */
+    @Override
+    protected ConfigurableApplicationContext createApplicationContext() {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.refresh();
+        this.context = context;
+        return context;
+    }
+
+    /**
+     * A real cache whose misses are answered from the dataset.
+     */
+    @Override
+    protected PixelsCache createPixelsCache(JsonObject config) {
+        return new PixelsCache(
+                config.getInteger("max-size", 10000),
+                config.getLong("ttl", 300L) * 1000,
+                config.getLong("permission-ttl", 60L) * 1000) {
+            @Override
+            public Pixels get(
+                    String omeroSessionKey, Long imageId,
+                    Callable<Pixels> loader,
+                    Callable<Boolean> permissionCheck) throws Exception {
+                return super.get(
+                        omeroSessionKey, imageId,
+                        () -> dataset.pixels(imageId),
+                        () -> dataset.pixels(imageId) != null);
+            }
+        };
+    }
+
+    /**
+     * A pool which accepts every session key without contacting a server;
+     * leases carry no client.
+     */
+    @Override
+    protected OmeroSessionPool createSessionPool(JsonObject config) {
+        JsonObject sessionPoolConfig =
+                config.getJsonObject("omero-session-pool", new JsonObject());
+        Set<String> keys = Set.copyOf(sessions.values());
+        return new OmeroSessionPool(
+                "localhost", 4064,
+                sessionPoolConfig.getInteger("max-size", 256),
+                sessionPoolConfig.getLong("idle-timeout", 60L) * 1000,
+                sessionPoolConfig.getLong("validation-interval", 10L)
+                    * 1000) {
+            @Override
+            protected omero.client join(String omeroSessionKey)
+                    throws Glacier2.PermissionDeniedException {
+                if (!keys.contains(omeroSessionKey)) {
+                    throw new Glacier2.PermissionDeniedException(
+                            "Unknown session: " + omeroSessionKey);
+                }
+                return null;
+            }
+
+            @Override
+            protected boolean validate(omero.client client) {
+                return true;
+            }
+
+            @Override
+            protected void close(omero.client client) {
+            }
+        };
+    }
+
+    /**
+     * Creates worker verticles reading from the dataset, sharing the caches
+     * registered with the application context.
+     */
+    @Override
+    protected VerticleFactory createVerticleFactory() {
+        PixelsService pixelsService = dataset.pixelsService();
+        return new VerticleFactory() {
+            @Override
+            public String prefix() {
+                return "loadtest";
+            }
+
+            @Override
+            public Verticle createVerticle(
+                    String verticleName, ClassLoader classLoader) {
+                return new PixelBufferVerticle(
+                        pixelsService,
+                        context.getBean(
+                            "omero-ms-pixel-buffer-cache",
+                            PixelBufferCache.class),
+                        context.getBean(
+                            "omero-ms-pixels-cache", PixelsCache.class),
+                        context.getBean(
+                            "omero-ms-session-pool", OmeroSessionPool.class),
+                        context.getBean(
+                            "omero-ms-region-reader", RegionReader.class),
+                        context.getBean(
+                            "omero-ms-resource-limits",
+                            ResourceLimits.class));
+            }
+        };
+    }
+
+    /**
+     * Resolves the OMERO session key from the <code>sessionid</code>
+     * cookie using the in-memory map, failing with 403 as the OMERO.web
+     * session handler does if there is no such session.
+     */
+    @Override
+    protected Handler<RoutingContext> createSessionHandler(
+            JsonObject config) {
+        return event -> {
+            String omeroSessionKey = null;
+            String header = event.request().getHeader("Cookie");
+            if (header != null) {
+                for (Cookie cookie : ServerCookieDecoder.LAX.decode(header)) {
+                    if (SESSION_COOKIE.equals(cookie.name())) {
+                        omeroSessionKey = sessions.get(cookie.value());
+                    }
+                }
+            }
+            if (omeroSessionKey == null) {
+                event.response().setStatusCode(403).end();
+                return;
+            }
+            event.put("omero.session_key", omeroSessionKey);
+            event.next();
+        };
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import org.slf4j.LoggerFactory;
+
+import com.bc.zarr.ZarrArray;
+import com.bc.zarr.ZarrGroup;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.glencoesoftware.omero.zarr.ZarrPixelBuffer;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsService;
+import ome.model.core.Image;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.model.meta.ExternalInfo;
+
+/**
+ * Synthetic single plane, multi-resolution OME-Zarr dataset on local disk
+ * standing in for the OMERO binary repository.  Every Image identifier from
+ * 1 to the configured number of Images maps to the same fileset, each with
+ * its own {@link Pixels} so that they are cached independently.
+ * <p>
+ * Chunks are zlib compressed pseudo random data with roughly the
+ * structure of real images.  The fileset is only written if one with the
+ * same parameters is not already present.
+ */
+public class SyntheticDataset {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(SyntheticDataset.class);
+
+    /** Marker written once the fileset is complete */
+    private static final String COMPLETE = ".complete";
+
+    /** Root of the fileset */
+    private final Path root;
+
+    /** OMERO pixels type */
+    private final String pixelsType;
+
+    /** Width and height of the full resolution plane */
+    private final int size;
+
+    /** Width and height of each chunk */
+    private final int chunkSize;
+
+    /** Number of resolution levels */
+    private final int levels;
+
+    /** Number of Images sharing the fileset */
+    private final int images;
+
+    /**
+     * Default constructor.
+     * @param directory directory to write the fileset below.
+     * @param pixelsType OMERO pixels type: <code>uint8</code>,
+     * <code>uint16</code> or <code>float</code>.
+     * @param size width and height of the full resolution plane.
+     * @param chunkSize width and height of each chunk.
+     * @param levels number of resolution levels, each half the size of the
+     * one above.
+     * @param images number of Images sharing the fileset.
+     */
+    public SyntheticDataset(
+            Path directory, String pixelsType, int size, int chunkSize,
+            int levels, int images) {
+        bitSize(pixelsType);
+        this.pixelsType = pixelsType;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.levels = levels;
+        this.images = images;
+        this.root = directory.resolve(String.format(
+                "%s-%d-%d-%d.zarr", pixelsType, size, chunkSize, levels));
+    }
+
+    /**
+     * @return Number of resolution levels.
+     */
+    public int levels() {
+        return levels;
+    }
+
+    /**
+     * @return Number of Images sharing the fileset.
+     */
+    public int images() {
+        return images;
+    }
+
+    /**
+     * @param resolution OMERO resolution level, counting up from the
+     * smallest.
+     * @return Width and height of the plane at that level.
+     */
+    public int size(int resolution) {
+        return size >> (levels - 1 - resolution);
+    }
+
+    /**
+     * Writes the fileset if it is not already present.
+     * @throws IOException If there was an error writing.
+     */
+    public void write() throws IOException {
+        if (Files.exists(root.resolve(COMPLETE))) {
+            log.info("Using existing dataset {}", root);
+            return;
+        }
+        log.info("Writing dataset {}", root);
+        Files.createDirectories(root);
+        JsonArray axes = new JsonArray();
+        for (String name : new String[] { "t", "c", "z", "y", "x" }) {
+            String type = name.equals("t")? "time"
+                    : name.equals("c")? "channel" : "space";
+            axes.add(new JsonObject().put("name", name).put("type", type));
+        }
+        JsonArray datasets = new JsonArray();
+        for (int i = 0; i < levels; i++) {
+            double scale = 1 << i;
+            datasets.add(new JsonObject()
+                .put("path", String.valueOf(i))
+                .put("coordinateTransformations", new JsonArray().add(
+                        new JsonObject()
+                            .put("type", "scale")
+                            .put("scale", new JsonArray()
+                                    .add(1.0).add(1.0).add(1.0)
+                                    .add(scale).add(scale)))));
+            writeArray(root.resolve(String.valueOf(i)), size >> i);
+        }
+        write(root.resolve(".zgroup"),
+                new JsonObject().put("zarr_format", 2));
+        write(root.resolve(".zattrs"), new JsonObject().put("multiscales",
+                new JsonArray().add(new JsonObject()
+                    .put("version", "0.4")
+                    .put("axes", axes)
+                    .put("datasets", datasets))));
+        Files.createFile(root.resolve(COMPLETE));
+    }
+
+    /**
+     * Builds the {@link Pixels} of an Image as the OMERO server would
+     * return them, with the Image's NGFF fileset as its external info.
+     * @param imageId Image identifier.
+     * @return See above or <code>null</code> if there is no such Image.
+     */
+    public Pixels pixels(long imageId) {
+        if (imageId < 1 || imageId > images) {
+            return null;
+        }
+        ExternalInfo externalInfo = new ExternalInfo();
+        externalInfo.setEntityType(ZarrChunkReader.NGFF_ENTITY_TYPE);
+        externalInfo.setLsid(root.toString());
+        Image image = new Image(imageId, true);
+        image.setSeries(0);
+        image.getDetails().setExternalInfo(externalInfo);
+        PixelsType type = new PixelsType();
+        type.setValue(pixelsType);
+        type.setBitSize(bitSize(pixelsType));
+        Pixels pixels = new Pixels(imageId, true);
+        pixels.setImage(image);
+        pixels.setPixelsType(type);
+        pixels.setSizeX(size);
+        pixels.setSizeY(size);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        return pixels;
+    }
+
+    /**
+     * Creates a pixels service which opens the fileset, in place of the
+     * OMERO server's.
+     * @return See above.
+     */
+    public PixelsService pixelsService() {
+        AsyncLoadingCache<Path, Map<String, Object>> metadataCache =
+                Caffeine.newBuilder()
+                    .maximumSize(1000)
+                    .buildAsync(path -> ZarrGroup.open(path).getAttributes());
+        AsyncLoadingCache<Path, ZarrArray> arrayCache =
+                Caffeine.newBuilder()
+                    .maximumSize(1000)
+                    .buildAsync(ZarrArray::open);
+        return new PixelsService(root.toString(), true) {
+            @Override
+            public PixelBuffer getPixelBuffer(Pixels pixels, boolean write) {
+                try {
+                    return new ZarrPixelBuffer(
+                            pixels, root, size, size,
+                            metadataCache, arrayCache);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes one resolution level as a zlib compressed Zarr array.
+     */
+    private void writeArray(Path array, int levelSize) throws IOException {
+        int bytesPerPixel = bitSize(pixelsType) / 8;
+        String dtype = pixelsType.equals("uint8")? "|u1"
+                : pixelsType.equals("uint16")? ">u2" : ">f4";
+        Files.createDirectories(array);
+        write(array.resolve(".zarray"), new JsonObject()
+            .put("zarr_format", 2)
+            .put("shape", new JsonArray()
+                    .add(1).add(1).add(1).add(levelSize).add(levelSize))
+            .put("chunks", new JsonArray()
+                    .add(1).add(1).add(1).add(chunkSize).add(chunkSize))
+            .put("dtype", dtype)
+            .put("compressor", new JsonObject()
+                    .put("id", "zlib").put("level", 1))
+            .put("fill_value", 0)
+            .put("filters", (Object) null)
+            .put("order", "C"));
+
+        int chunks = (levelSize + chunkSize - 1) / chunkSize;
+        byte[] chunk = new byte[chunkSize * chunkSize * bytesPerPixel];
+        Random random = new Random(levelSize);
+        for (int y = 0; y < chunks; y++) {
+            for (int x = 0; x < chunks; x++) {
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = (byte) ((i >> 6) + random.nextInt(8));
+                }
+                Path path = array.resolve("0.0.0." + y + "." + x);
+                try (OutputStream out = new DeflaterOutputStream(
+                        Files.newOutputStream(path))) {
+                    out.write(chunk);
+                }
+            }
+        }
+    }
+
+    private static int bitSize(String pixelsType) {
+        switch (pixelsType) {
+            case "uint8":
+                return 8;
+            case "uint16":
+                return 16;
+            case "float":
+                return 32;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported pixels type: " + pixelsType);
+        }
+    }
+
+    private static void write(Path path, JsonObject json)
+            throws IOException {
+        Files.write(path, json.encode().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Adaptive limit on the number of requests in flight to the worker
+ * verticles, so that a burst is shed with 503 rather than queued without
+ * bound on the event bus.
+ * <p>
+ * The limit follows the gradient between the long term average latency and
+ * the latency of each request: while requests complete about as fast as
+ * they have on average the limit grows by roughly its square root, as
+ * latency rises above the tolerated ratio it shrinks in proportion and it
+ * is cut multiplicatively whenever a request times out or fails on the
+ * server.  Changes are smoothed and the limit is only grown while at least
+ * half of it is in use.
+ * <p>
+ * Not thread safe; all access must be from the HTTP verticle's event loop.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Gauge LIMIT = Gauge.build()
+            .name("omero_ms_pixel_buffer_concurrency_limit")
+            .help("Current limit on tile requests in flight to the workers")
+            .register();
+
+    private static final Gauge IN_FLIGHT = Gauge.build()
+            .name("omero_ms_pixel_buffer_concurrency_in_flight")
+            .help("Tile requests in flight to the workers")
+            .register();
+
+    private static final Counter REJECTED = Counter.build()
+            .name("omero_ms_pixel_buffer_concurrency_rejected_total")
+            .help("Tile requests rejected over the concurrency limit")
+            .register();
+
+    /** Number of samples the long term average latency is taken over */
+    private static final int LONG_WINDOW = 600;
+
+    /** Factor the limit is multiplied by when a request is dropped */
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /** Lowest the limit may go */
+    private final int minLimit;
+
+    /** Highest the limit may go */
+    private final int maxLimit;
+
+    /** Ratio of recent to long term latency tolerated before shrinking */
+    private final double tolerance;
+
+    /** Weight of each new limit estimate, from 0 to 1 */
+    private final double smoothing;
+
+    /** Current limit */
+    private double limit;
+
+    /** Requests currently in flight */
+    private int inFlight = 0;
+
+    /** Long term exponential average of latency in nanoseconds */
+    private double longRtt = 0;
+
+    /**
+     * Default constructor.
+     * @param initialLimit limit to start at.
+     * @param minLimit lowest the limit may go.
+     * @param maxLimit highest the limit may go.
+     * @param tolerance ratio of recent to long term latency tolerated
+     * before the limit is reduced.
+     * @param smoothing weight of each new limit estimate, from 0 to 1.
+     */
+    public ConcurrencyLimiter(
+            int initialLimit, int minLimit, int maxLimit, double tolerance,
+            double smoothing) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid limits: %d to %d", minLimit, maxLimit));
+        }
+        if (tolerance < 1 || smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid tolerance %f or smoothing %f",
+                    tolerance, smoothing));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        LIMIT.set(limit);
+    }
+
+    /**
+     * Takes a permit for a request if the limit has not been reached.  A
+     * permit must be returned by exactly one of {@link #onSuccess(long)},
+     * {@link #onDropped()} or {@link #onIgnore()}.
+     * @return <code>true</code> if the request may proceed.
+     */
+    public boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            REJECTED.inc();
+            return false;
+        }
+        IN_FLIGHT.set(++inFlight);
+        return true;
+    }
+
+    /**
+     * Returns a permit for a request which completed normally and adjusts
+     * the limit by its latency.
+     * @param start {@link System#nanoTime()} when the request was sent.
+     */
+    public void onSuccess(long start) {
+        double rtt = Math.max(1, System.nanoTime() - start);
+        boolean appLimited = inFlight * 2 < limit;
+        release();
+        if (longRtt == 0) {
+            longRtt = rtt;
+            return;
+        }
+        longRtt += (rtt - longRtt) / LONG_WINDOW;
+        if (longRtt / rtt > 2) {
+            // Latency has improved for good; let the average catch up
+            // rather than growing the limit on stale history
+            longRtt *= 0.95;
+        }
+        if (appLimited) {
+            return;
+        }
+        double gradient = Math.max(
+                0.5, Math.min(1.0, tolerance * longRtt / rtt));
+        double estimate = limit * gradient + Math.sqrt(limit);
+        update(limit * (1 - smoothing) + estimate * smoothing);
+    }
+
+    /**
+     * Returns a permit for a request which timed out or failed on the
+     * server and cuts the limit.
+     */
+    public void onDropped() {
+        release();
+        update(limit * BACKOFF_RATIO);
+    }
+
+    /**
+     * Returns a permit for a request whose latency says nothing about the
+     * load on the workers, such as one which was cancelled or rejected by
+     * the client's parameters.
+     */
+    public void onIgnore() {
+        release();
+    }
+
+    /**
+     * @return Current limit.
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    private void release() {
+        IN_FLIGHT.set(--inFlight);
+    }
+
+    private void update(double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        LIMIT.set(limit);
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.github.luben.zstd.Zstd;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.prometheus.client.Counter;
+
+/**
+ * Negotiates an HTTP <code>Content-Encoding</code> from a request's
+ * <code>Accept-Encoding</code> and compresses response bodies with it.
+ * The {@link Deflater} used for <code>gzip</code> and <code>deflate</code>
+ * is reused per thread.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class ContentEncoder {
+
+    private static final Counter INPUT_BYTES = Counter.build()
+            .name("omero_ms_pixel_buffer_content_encoding_input_bytes_total")
+            .help("Response bytes before content encoding")
+            .labelNames("encoding")
+            .register();
+
+    private static final Counter OUTPUT_BYTES = Counter.build()
+            .name("omero_ms_pixel_buffer_content_encoding_output_bytes_total")
+            .help("Response bytes after content encoding")
+            .labelNames("encoding")
+            .register();
+
+    /** Supported content encodings */
+    public enum Encoding {
+        /** Zstandard */
+        ZSTD("zstd"),
+        /** Deflate with a gzip header and trailer */
+        GZIP("gzip"),
+        /** Deflate with a zlib header and trailer */
+        DEFLATE("deflate");
+
+        /** Value of the <code>Content-Encoding</code> header */
+        public final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    /** gzip member header: deflate, no flags or time, unknown OS */
+    private static final byte[] GZIP_HEADER = new byte[] {
+        0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    /** Smallest amount of space offered to the deflater at once */
+    private static final int MIN_WRITABLE = 8192;
+
+    /** Deflater writing raw deflate data, for gzip, of the current thread */
+    private static final ThreadLocal<Deflater> RAW_DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(
+                    Deflater.DEFAULT_COMPRESSION, true));
+
+    /** Deflater writing zlib data of the current thread */
+    private static final ThreadLocal<Deflater> ZLIB_DEFLATER =
+            ThreadLocal.withInitial(Deflater::new);
+
+    /** Checksum for gzip of the current thread */
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(
+            CRC32::new);
+
+    /** Enabled encodings in order of preference */
+    private final List<Encoding> encodings;
+
+    /** Smallest body in bytes which is encoded */
+    private final int minSize;
+
+    /** gzip and deflate compression level */
+    private final int level;
+
+    /** Zstandard compression level */
+    private final int zstdLevel;
+
+    /**
+     * Default constructor.
+     * @param encodings enabled encodings in order of preference, used to
+     * choose between encodings the client accepts equally.
+     * @param minSize smallest body in bytes which is encoded.
+     * @param level gzip and deflate compression level.
+     * @param zstdLevel Zstandard compression level.
+     */
+    public ContentEncoder(
+            List<Encoding> encodings, int minSize, int level,
+            int zstdLevel) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION
+                    || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException(
+                    "Invalid deflate level: " + level);
+        }
+        this.encodings = encodings;
+        this.minSize = minSize;
+        this.level = level;
+        this.zstdLevel = zstdLevel;
+    }
+
+    /**
+     * @param encoding content encoding.
+     * @return Suffix which distinguishes the entity tag of a body encoded
+     * with the given encoding, at the configured compression level, from
+     * that of the unencoded body and of other encodings.
+     */
+    public String etagSuffix(Encoding encoding) {
+        return encoding.token + "-"
+                + (encoding == Encoding.ZSTD? zstdLevel : level);
+    }
+
+    /**
+     * Chooses the enabled encoding which the client prefers, honoring
+     * <code>q</code> values and <code>*</code>.
+     * @param acceptEncoding value of the <code>Accept-Encoding</code>
+     * header or <code>null</code>.
+     * @return See above or <code>null</code> if the body should not be
+     * encoded.
+     */
+    public Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || encodings.isEmpty()) {
+            return null;
+        }
+        Map<Encoding, Double> accepted =
+                new EnumMap<Encoding, Double>(Encoding.class);
+        Double wildcard = null;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String token = params[0].trim().toLowerCase();
+            double q = 1.0;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (token.equals("*")) {
+                wildcard = q;
+                continue;
+            }
+            for (Encoding encoding : Encoding.values()) {
+                if (encoding.token.equals(token)) {
+                    accepted.put(encoding, q);
+                }
+            }
+        }
+        Encoding best = null;
+        double bestQ = 0;
+        for (Encoding encoding : encodings) {
+            Double q = accepted.getOrDefault(encoding, wildcard);
+            if (q != null && q > bestQ) {
+                best = encoding;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param length length of a body in bytes.
+     * @return <code>true</code> if a body of the given length is large
+     * enough to be worth encoding.
+     */
+    public boolean shouldEncode(int length) {
+        return length >= minSize;
+    }
+
+    /**
+     * Encodes a body.  The indexes of <code>data</code> are not changed.
+     * @param encoding encoding to use.
+     * @param data body to encode.
+     * @return The encoded body.
+     */
+    public ByteBuf encode(Encoding encoding, ByteBuf data) {
+        int length = data.readableBytes();
+        ByteBuf out = Unpooled.buffer(
+                encoding == Encoding.ZSTD?
+                        (int) Zstd.compressBound(length)
+                        : length + length / 1000 + 64);
+        switch (encoding) {
+            case ZSTD:
+                zstd(data, out);
+                break;
+            case GZIP:
+                CRC32 crc = CRC.get();
+                crc.reset();
+                crc.update(data.nioBuffer());
+                out.writeBytes(GZIP_HEADER);
+                deflate(RAW_DEFLATER.get(), data, out);
+                out.writeIntLE((int) crc.getValue());
+                out.writeIntLE(length);
+                break;
+            case DEFLATE:
+                deflate(ZLIB_DEFLATER.get(), data, out);
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown encoding: " + encoding);
+        }
+        INPUT_BYTES.labels(encoding.token).inc(length);
+        OUTPUT_BYTES.labels(encoding.token).inc(out.readableBytes());
+        return out;
+    }
+
+    /**
+     * Deflates <code>data</code> onto the end of <code>out</code>.
+     */
+    private void deflate(Deflater deflater, ByteBuf data, ByteBuf out) {
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data.nioBuffer());
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.ensureWritable(MIN_WRITABLE);
+            int written = deflater.deflate(
+                    out.array(), out.arrayOffset() + out.writerIndex(),
+                    out.writableBytes());
+            out.writerIndex(out.writerIndex() + written);
+        }
+    }
+
+    /**
+     * Compresses <code>data</code> with Zstandard onto the end of
+     * <code>out</code>.
+     */
+    private void zstd(ByteBuf data, ByteBuf out) {
+        int length = data.readableBytes();
+        byte[] src;
+        int offset;
+        if (data.hasArray()) {
+            src = data.array();
+            offset = data.arrayOffset() + data.readerIndex();
+        } else {
+            src = new byte[length];
+            data.getBytes(data.readerIndex(), src);
+            offset = 0;
+        }
+        out.ensureWritable((int) Zstd.compressBound(length));
+        long written = Zstd.compressByteArray(
+                out.array(), out.arrayOffset() + out.writerIndex(),
+                out.writableBytes(), src, offset, length, zstdLevel);
+        if (Zstd.isError(written)) {
+            throw new IllegalStateException(
+                    "Zstandard compression failed: "
+                    + Zstd.getErrorName(written));
+        }
+        out.writerIndex(out.writerIndex() + (int) written);
+    }
+
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.Vertx;
+
+/**
+ * Size bounded, on-disk cache of encoded tile responses keyed by
+ * {@link TileCtx#tileKey()}, intended as a second level beneath
+ * {@link TileResponseCache}.  Hits are served with
+ * {@link io.vertx.core.http.HttpServerResponse#sendFile(String, long, long)}
+ * so their bytes go from the page cache to the socket without entering
+ * the JVM heap.
+ * <p>
+ * Each tile is a single file holding the response's entity tag and
+ * filename, each as a two byte length followed by UTF-8, and then the
+ * response body.  A cached tile whose entity tag no longer matches is
+ * stale and is deleted when it is next looked up.  Files are written
+ * to a temporary file and atomically renamed into place so a crash never
+ * leaves a partial tile behind.  Eviction is least recently used; the
+ * order survives restarts through file modification times, which are
+ * refreshed on every hit.
+ * <p>
+ * The index is not thread safe and must only be used from the HTTP
+ * verticle's event loop; all file I/O is run on worker threads.
+ */
+public class DiskTileCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(DiskTileCache.class);
+
+    private static final Counter HITS = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_disk_cache_hits_total")
+            .help("Tile disk cache hits")
+            .register();
+
+    private static final Counter MISSES = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_disk_cache_misses_total")
+            .help("Tile disk cache misses")
+            .register();
+
+    private static final Counter EVICTIONS = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_disk_cache_evictions_total")
+            .help("Tile disk cache evictions")
+            .register();
+
+    private static final Gauge SIZE_BYTES = Gauge.build()
+            .name("omero_ms_pixel_buffer_tile_disk_cache_size_bytes")
+            .help("Total size of tiles in the disk cache in bytes")
+            .register();
+
+    private static final String SUFFIX = ".tile";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Age in milliseconds after which a temporary file is assumed to have
+     * been left behind rather than still being written, possibly by
+     * another instance sharing the directory
+     */
+    private static final long TEMP_GRACE_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    private final Vertx vertx;
+
+    /** Cache directory */
+    private final Path directory;
+
+    /** Maximum total size of cached files in bytes */
+    private final long maxSize;
+
+    /** Maximum size of a single cached response in bytes */
+    private final int maxEntrySize;
+
+    /** Cached files by file name in least recently used order */
+    private final LinkedHashMap<String, CachedTile> entries =
+            new LinkedHashMap<String, CachedTile>(16, 0.75f, true);
+
+    /** Current total size of cached files in bytes */
+    private long size = 0;
+
+    /**
+     * Default constructor.  The existing contents of the cache directory
+     * are indexed asynchronously; until that completes the cache is empty.
+     * @param vertx Vert.x instance used to run file I/O.
+     * @param directory cache directory, created if it does not exist.
+     * @param maxSize maximum total size of cached files in bytes.
+     * @param maxEntrySize maximum size of a single cached response in
+     * bytes.
+     */
+    public DiskTileCache(
+            Vertx vertx, Path directory, long maxSize, int maxEntrySize) {
+        this.vertx = vertx;
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        vertx.<List<CachedTile>>executeBlocking(
+                promise -> {
+                    try {
+                        promise.complete(scan());
+                    } catch (Exception e) {
+                        promise.fail(e);
+                    }
+                }, false, result -> {
+            if (result.failed()) {
+                log.error("Failed to index tile disk cache {}",
+                        directory, result.cause());
+                return;
+            }
+            for (CachedTile tile : result.result()) {
+                String name = tile.path.getFileName().toString();
+                if (!entries.containsKey(name)) {
+                    entries.put(name, tile);
+                    size += tile.offset + tile.length;
+                }
+            }
+            log.info("Indexed {} tiles in disk cache {}",
+                    entries.size(), directory);
+            evict(0);
+        });
+    }
+
+    /**
+     * Checks whether a tile is cached, in any version, without marking it
+     * as recently used.  A miss is counted if it is not, in which case
+     * {@link #get(String, String)} should not also be called for the same
+     * request.
+     * @param key tile key.
+     * @return <code>true</code> if the tile is cached.
+     */
+    public boolean contains(String key) {
+        boolean cached = entries.containsKey(fileName(key));
+        if (!cached) {
+            MISSES.inc();
+        }
+        return cached;
+    }
+
+    /**
+     * Retrieves the location of a cached tile and marks it as recently used.
+     * A tile cached with a different entity tag is stale and is deleted.
+     * @param key tile key.
+     * @param etag current entity tag of the tile response.
+     * @return See above or <code>null</code> if the tile is not cached.
+     */
+    public CachedTile get(String key, String etag) {
+        String name = fileName(key);
+        CachedTile tile = entries.get(name);
+        if (tile != null && !tile.etag.equals(etag)) {
+            entries.remove(name);
+            size -= tile.offset + tile.length;
+            SIZE_BYTES.set(size);
+            delete(tile);
+            tile = null;
+        }
+        if (tile == null) {
+            MISSES.inc();
+            return null;
+        }
+        HITS.inc();
+        vertx.executeBlocking(promise -> {
+            try {
+                Files.setLastModifiedTime(
+                        tile.path,
+                        FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                log.debug("Failed to touch {}", tile.path, e);
+            }
+            promise.complete();
+        }, false, null);
+        return tile;
+    }
+
+    /**
+     * Offers a response to the cache.  The response is written
+     * asynchronously and becomes visible once the write has completed.
+     * @param key tile key.
+     * @param data response body.
+     * @param filename response filename.
+     * @param etag entity tag of the response.
+     */
+    public void put(String key, ByteBuf data, String filename, String etag) {
+        String name = fileName(key);
+        CachedTile existing = entries.get(name);
+        if (data.readableBytes() > maxEntrySize
+                || (existing != null && existing.etag.equals(etag))) {
+            return;
+        }
+        vertx.<CachedTile>executeBlocking(promise -> {
+            try {
+                promise.complete(write(name, data, filename, etag));
+            } catch (Exception e) {
+                promise.fail(e);
+            }
+        }, false, result -> {
+            if (result.failed()) {
+                log.warn("Failed to write tile to disk cache",
+                        result.cause());
+                return;
+            }
+            CachedTile tile = result.result();
+            CachedTile replaced = entries.put(name, tile);
+            if (replaced != null) {
+                size -= replaced.offset + replaced.length;
+            }
+            size += tile.offset + tile.length;
+            evict(0);
+        });
+    }
+
+    /**
+     * Removes a tile from the index, for example because its file has
+     * disappeared from underneath the cache.
+     * @param key tile key.
+     */
+    public void remove(String key) {
+        CachedTile tile = entries.remove(fileName(key));
+        if (tile != null) {
+            size -= tile.offset + tile.length;
+            SIZE_BYTES.set(size);
+        }
+    }
+
+    /**
+     * Evicts least recently used files until <code>required</code> bytes
+     * fit within the budget.
+     */
+    private void evict(long required) {
+        Iterator<CachedTile> i = entries.values().iterator();
+        while (size + required > maxSize && i.hasNext()) {
+            CachedTile tile = i.next();
+            i.remove();
+            size -= tile.offset + tile.length;
+            EVICTIONS.inc();
+            delete(tile);
+        }
+        SIZE_BYTES.set(size);
+    }
+
+    /**
+     * Deletes the file of a tile which has been removed from the index.
+     */
+    private void delete(CachedTile tile) {
+        vertx.fileSystem().delete(tile.path.toString(), result -> {
+            if (result.failed()) {
+                log.debug("Failed to delete {}", tile.path, result.cause());
+            }
+        });
+    }
+
+    /**
+     * Writes a tile to a temporary file and atomically moves it into place.
+     */
+    private CachedTile write(
+            String name, ByteBuf data, String filename, String etag)
+                    throws IOException {
+        Path shard = directory.resolve(name.substring(0, 2));
+        Files.createDirectories(shard);
+        byte[] etagBytes = etag.getBytes(StandardCharsets.UTF_8);
+        byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(
+                4 + etagBytes.length + filenameBytes.length);
+        header.putShort((short) etagBytes.length).put(etagBytes);
+        header.putShort((short) filenameBytes.length).put(filenameBytes);
+        header.flip();
+        int headerLength = header.remaining();
+        Path temporary = Files.createTempFile(shard, name, TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(
+                    temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer[] buffers = new ByteBuffer[] {
+                    header, data.nioBuffer()
+                };
+                long remaining = headerLength + data.readableBytes();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                channel.force(false);
+            }
+            Path target = shard.resolve(name);
+            Files.move(temporary, target,
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            return new CachedTile(
+                    target, filename, etag, headerLength,
+                    data.readableBytes());
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Indexes the existing contents of the cache directory, oldest first,
+     * removing temporary files old enough to have been left behind by a
+     * crash.
+     */
+    private List<CachedTile> scan() throws IOException {
+        Files.createDirectories(directory);
+        List<CachedTile> tiles = new ArrayList<CachedTile>();
+        List<Long> modified = new ArrayList<Long>();
+        long staleBefore = System.currentTimeMillis() - TEMP_GRACE_PERIOD;
+        try (DirectoryStream<Path> shards =
+                Files.newDirectoryStream(directory)) {
+            for (Path shard : shards) {
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files =
+                        Files.newDirectoryStream(shard)) {
+                    for (Path path : files) {
+                        String name = path.getFileName().toString();
+                        if (name.endsWith(TEMP_SUFFIX)) {
+                            try {
+                                if (Files.getLastModifiedTime(path).toMillis()
+                                        < staleBefore) {
+                                    Files.deleteIfExists(path);
+                                }
+                            } catch (NoSuchFileException e) {
+                                // Completed or removed by its writer
+                            }
+                            continue;
+                        }
+                        if (!name.endsWith(SUFFIX)) {
+                            continue;
+                        }
+                        try {
+                            tiles.add(read(path));
+                            modified.add(
+                                Files.getLastModifiedTime(path).toMillis());
+                        } catch (IOException e) {
+                            log.warn("Removing unreadable {}", path, e);
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                }
+            }
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < tiles.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong(modified::get));
+        List<CachedTile> sorted = new ArrayList<CachedTile>();
+        for (int i : order) {
+            sorted.add(tiles.get(i));
+        }
+        return sorted;
+    }
+
+    /**
+     * Reads the header of a cached tile.
+     */
+    private CachedTile read(Path path) throws IOException {
+        long fileSize = Files.size(path);
+        try (InputStream in = Files.newInputStream(path);
+             DataInputStream data = new DataInputStream(in)) {
+            byte[] etag = new byte[data.readUnsignedShort()];
+            data.readFully(etag);
+            byte[] filename = new byte[data.readUnsignedShort()];
+            data.readFully(filename);
+            long offset = 4 + etag.length + filename.length;
+            return new CachedTile(
+                    path, new String(filename, StandardCharsets.UTF_8),
+                    new String(etag, StandardCharsets.UTF_8),
+                    offset, fileSize - offset);
+        }
+    }
+
+    /**
+     * @return File name of the cached tile with the given key.
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Location of a cached response body within its file.
+     */
+    public static class CachedTile {
+
+        /** Cache file */
+        public final Path path;
+
+        /** Response filename */
+        public final String filename;
+
+        /** Entity tag of the response */
+        public final String etag;
+
+        /** Offset of the response body within the file */
+        public final long offset;
+
+        /** Length of the response body */
+        public final long length;
+
+        CachedTile(
+                Path path, String filename, String etag, long offset,
+                long length) {
+            this.path = path;
+            this.filename = filename;
+            this.etag = etag;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Thread safe, size bounded, least recently used map whose entries expire a
+ * fixed time after they were written.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+
+    /** Maximum number of entries; values less than one disable caching */
+    private final int maxSize;
+
+    /** Time after which an entry expires in milliseconds */
+    private final long ttl;
+
+    /** Entries in least recently used order */
+    private final LinkedHashMap<K, Entry<V>> entries =
+            new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum number of entries; a value less than one
+     * disables caching.
+     * @param ttl time after which an entry expires in milliseconds.
+     */
+    public ExpiringCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Retrieves an unexpired value.
+     * @param key key to look up.
+     * @return The value or <code>null</code> if it is not present or has
+     * expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expires) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Adds or replaces a value, evicting the least recently used entries if
+     * the cache is full.
+     * @param key key to add.
+     * @param value value to add.
+     */
+    public synchronized void put(K key, V value) {
+        if (maxSize < 1) {
+            return;
+        }
+        entries.put(key, new Entry<V>(
+                value, System.currentTimeMillis() + ttl));
+        Iterator<Entry<V>> i = entries.values().iterator();
+        while (entries.size() > maxSize && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /**
+     * Removes a value.
+     * @param key key to remove.
+     */
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all expired entries.
+     */
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now >= entry.expires);
+    }
+
+    /**
+     * @return Number of entries, including those which have expired but
+     * have not yet been evicted.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.LoggerFactory;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import brave.ScopedSpan;
+import brave.Tracing;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import omero.ServerError;
+
+/**
+ * Pool of joined OMERO sessions keyed by OMERO session key, shared by all
+ * {@link PixelBufferVerticle} instances.  Joining a session requires a
+ * round trip to the OMERO server so clients are kept alive between tile
+ * requests, revalidated periodically and closed (without destroying the
+ * OMERO.web owned session) once idle or once the session has expired.
+ */
+public class OmeroSessionPool {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(OmeroSessionPool.class);
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("omero_ms_pixel_buffer_session_pool_size")
+            .help("Number of joined OMERO sessions in the pool")
+            .register();
+
+    private static final Counter JOINS = Counter.build()
+            .name("omero_ms_pixel_buffer_session_joins_total")
+            .help("OMERO session joins")
+            .register();
+
+    private static final Counter JOINS_AVOIDED = Counter.build()
+            .name("omero_ms_pixel_buffer_session_joins_avoided_total")
+            .help("Requests served by an already joined OMERO session")
+            .register();
+
+    private static final Counter EVICTIONS = Counter.build()
+            .name("omero_ms_pixel_buffer_session_pool_evictions_total")
+            .help("OMERO sessions closed by the pool")
+            .labelNames("cause")
+            .register();
+
+    private static final Histogram JOIN_LATENCY = Histogram.build()
+            .name("omero_ms_pixel_buffer_session_join_seconds")
+            .help("OMERO session join latency in seconds")
+            .register();
+
+    /** OMERO server host */
+    private final String host;
+
+    /** OMERO server port */
+    private final int port;
+
+    /** Maximum number of joined sessions to keep */
+    private final int maxSize;
+
+    /** Time after which an unused session is closed in milliseconds */
+    private final long idleTimeout;
+
+    /** Time after which a session is revalidated before use in milliseconds */
+    private final long validationInterval;
+
+    /** Joined sessions by OMERO session key */
+    private final ConcurrentHashMap<String, PooledSession> sessions =
+            new ConcurrentHashMap<String, PooledSession>();
+
+    /**
+     * Default constructor.
+     * @param host OMERO server host.
+     * @param port OMERO server port.
+     * @param maxSize maximum number of joined sessions to keep.
+     * @param idleTimeout time after which an unused session is closed in
+     * milliseconds.
+     * @param validationInterval time after which a session is revalidated
+     * against the server before it is reused in milliseconds.
+     */
+    public OmeroSessionPool(
+            String host, int port, int maxSize, long idleTimeout,
+            long validationInterval) {
+        this.host = host;
+        this.port = port;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * Acquires a lease on a client joined to the given OMERO session,
+     * joining it if the pool does not already hold a valid one.  The lease
+     * must be closed once the caller has finished with the client.
+     * <p>
+     * No lock is held during the round trips to the OMERO server: the
+     * first caller for a session joins it while concurrent callers wait on
+     * the outcome, and a session due for revalidation is pinged by a single
+     * caller while the others carry on using it.
+     * @param omeroSessionKey OMERO session key to join.
+     * @return See above.
+     * @throws PermissionDeniedException If the session key is not valid.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If there was any other error joining the session.
+     */
+    public Lease acquire(String omeroSessionKey)
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        while (true) {
+            PooledSession pooled = sessions.computeIfAbsent(
+                    omeroSessionKey, PooledSession::new);
+            CompletableFuture<omero.client> joined;
+            boolean joining = false;
+            boolean validating = false;
+            long now = System.currentTimeMillis();
+            synchronized (pooled) {
+                if (pooled.closed) {
+                    // Removed by another thread; start again
+                    continue;
+                }
+                if (pooled.joined == null) {
+                    pooled.joined = new CompletableFuture<omero.client>();
+                    joining = true;
+                } else if (pooled.client != null
+                        && now - pooled.lastValidated >= validationInterval) {
+                    // Claimed so that only this caller revalidates
+                    pooled.lastValidated = now;
+                    validating = true;
+                }
+                joined = pooled.joined;
+                // Held while joining or validating so that the client
+                // cannot be closed in the meantime
+                pooled.references++;
+                pooled.lastAccess = now;
+            }
+            SIZE.set(sessions.size());
+
+            omero.client client;
+            if (joining) {
+                try {
+                    client = join(omeroSessionKey);
+                } catch (Exception e) {
+                    synchronized (pooled) {
+                        pooled.closed = true;
+                        sessions.remove(omeroSessionKey, pooled);
+                    }
+                    SIZE.set(sessions.size());
+                    release(pooled);
+                    joined.completeExceptionally(e);
+                    throw e;
+                }
+                synchronized (pooled) {
+                    pooled.client = client;
+                    pooled.lastValidated = now;
+                }
+                joined.complete(client);
+            } else {
+                try {
+                    client = joined.join();
+                } catch (CompletionException e) {
+                    release(pooled);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof PermissionDeniedException) {
+                        throw (PermissionDeniedException) cause;
+                    }
+                    if (cause instanceof CannotCreateSessionException) {
+                        throw (CannotCreateSessionException) cause;
+                    }
+                    if (cause instanceof ServerError) {
+                        throw (ServerError) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw e;
+                }
+                if (validating && !validate(client)) {
+                    synchronized (pooled) {
+                        // Other leases may still be using the client; it
+                        // is closed once the last of them is released
+                        remove(pooled, "expired");
+                    }
+                    release(pooled);
+                    continue;
+                }
+                JOINS_AVOIDED.inc();
+            }
+            if (sessions.size() > maxSize) {
+                evict(0);
+            }
+            return new Lease(this, pooled, client);
+        }
+    }
+
+    /**
+     * Closes all sessions which have not been used within the idle
+     * timeout.  This may block on the OMERO server and must not be called
+     * from an event loop thread.
+     */
+    public void evictIdle() {
+        evict(idleTimeout);
+    }
+
+    /**
+     * Closes all sessions which are not currently in use.
+     */
+    public void close() {
+        for (PooledSession pooled : sessions.values()) {
+            omero.client client = null;
+            synchronized (pooled) {
+                if (pooled.references == 0) {
+                    client = remove(pooled, "shutdown");
+                }
+            }
+            close(client);
+        }
+    }
+
+    /**
+     * Closes, least recently used first, unused sessions which have been
+     * idle for at least <code>minIdle</code> milliseconds.  When called with
+     * zero only enough sessions to bring the pool down to its maximum size
+     * are closed.
+     */
+    private void evict(long minIdle) {
+        long now = System.currentTimeMillis();
+        List<PooledSession> candidates =
+                new ArrayList<PooledSession>(sessions.values());
+        candidates.sort(Comparator.comparingLong(p -> p.lastAccess));
+        for (PooledSession pooled : candidates) {
+            if (minIdle == 0 && sessions.size() <= maxSize) {
+                break;
+            }
+            omero.client client;
+            synchronized (pooled) {
+                if (pooled.closed || pooled.references > 0) {
+                    continue;
+                }
+                if (minIdle > 0 && now - pooled.lastAccess < minIdle) {
+                    // Sorted by last access; everything after is newer
+                    break;
+                }
+                client = remove(pooled, minIdle == 0 ? "size" : "idle");
+            }
+            close(client);
+        }
+    }
+
+    /**
+     * Removes a pooled session, leaving its client for the last outstanding
+     * lease to close if it is still in use.  Must be called while holding
+     * the pooled session's monitor.
+     * @return The client, to be closed once the monitor has been released,
+     * if it is no longer in use or <code>null</code>.
+     */
+    private omero.client remove(PooledSession pooled, String cause) {
+        pooled.closed = true;
+        sessions.remove(pooled.omeroSessionKey, pooled);
+        SIZE.set(sessions.size());
+        omero.client client = null;
+        if (pooled.client != null) {
+            EVICTIONS.labels(cause).inc();
+            if (pooled.references == 0) {
+                client = pooled.client;
+                pooled.client = null;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Releases a reference to a pooled session, closing its client if the
+     * session has been removed from the pool and this was the last
+     * reference.
+     */
+    private void release(PooledSession pooled) {
+        omero.client client = null;
+        synchronized (pooled) {
+            pooled.references--;
+            pooled.lastAccess = System.currentTimeMillis();
+            if (pooled.closed && pooled.references == 0) {
+                // Removed from the pool while in use
+                client = pooled.client;
+                pooled.client = null;
+            }
+        }
+        close(client);
+    }
+
+    /**
+     * Joins an OMERO session.
+     * @param omeroSessionKey OMERO session key to join.
+     * @return Client joined to the session.
+     * @throws PermissionDeniedException If the session key is not valid.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If there was any other error joining the session.
+     */
+    protected omero.client join(String omeroSessionKey)
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("join_session");
+        Histogram.Timer timer = JOIN_LATENCY.startTimer();
+        omero.client client = new omero.client(host, port);
+        try {
+            client.joinSession(omeroSessionKey).detachOnDestroy();
+            JOINS.inc();
+            return client;
+        } catch (PermissionDeniedException | CannotCreateSessionException
+                | ServerError | RuntimeException e) {
+            span.error(e);
+            close(client);
+            throw e;
+        } finally {
+            timer.observeDuration();
+            span.finish();
+        }
+    }
+
+    /**
+     * Checks that a joined session is still alive on the server.
+     * @param client client to check.
+     * @return <code>true</code> if the session is still usable.
+     */
+    protected boolean validate(omero.client client) {
+        try {
+            client.getSession().ice_ping();
+            return true;
+        } catch (Exception e) {
+            log.debug("Pooled OMERO session no longer valid", e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes a client, detaching from but not destroying its session.
+     * @param client client to close or <code>null</code>.
+     */
+    protected void close(omero.client client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.__del__();
+        } catch (Exception e) {
+            log.warn("Exception while closing OMERO client", e);
+        }
+    }
+
+    /**
+     * Reference counted joined session.
+     */
+    private static class PooledSession {
+
+        private final String omeroSessionKey;
+
+        /** Completed once the first caller has joined the session */
+        private CompletableFuture<omero.client> joined;
+
+        private omero.client client;
+
+        private int references = 0;
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private long lastValidated;
+
+        private boolean closed = false;
+
+        PooledSession(String omeroSessionKey) {
+            this.omeroSessionKey = omeroSessionKey;
+        }
+    }
+
+    /**
+     * A caller's claim on a joined session.  The client must not be used
+     * after the lease has been closed.
+     * <p>
+     * Concurrent leases on the same OMERO session share one client.  This
+     * is safe as long as the client is only used to make calls through its
+     * session's service proxies, which are thread safe, passing any call
+     * context explicitly; lease holders must not close the client or change
+     * its state, such as its implicit context.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final OmeroSessionPool pool;
+
+        private final PooledSession pooled;
+
+        private final omero.client client;
+
+        private boolean closed = false;
+
+        private Lease(
+                OmeroSessionPool pool, PooledSession pooled,
+                omero.client client) {
+            this.pool = pool;
+            this.pooled = pooled;
+            this.client = client;
+        }
+
+        /**
+         * @return The leased client.
+         */
+        public omero.client getClient() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                pool.release(pooled);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.LoggerFactory;
+
+import com.glencoesoftware.omero.zarr.ZarrPixelBuffer;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import ome.io.nio.PixelBuffer;
+
+/**
+ * Size and idle time bounded cache of open {@link PixelBuffer} instances
+ * shared by all {@link PixelBufferVerticle} instances.  Entries are
+ * reference counted so that a buffer which is evicted while tiles are still
+ * being read from it is only closed once the last {@link Lease} is released.
+ * <p>
+ * A {@link PixelBuffer} carries its current resolution level as mutable
+ * state so entries are keyed by both the {@link ome.model.core.Pixels}
+ * identifier and the resolution level and the resolution level of a cached
+ * buffer is never changed after it has been opened.  Only
+ * {@link ZarrPixelBuffer} instances, which support concurrent reads, are
+ * cached; all other buffers are closed when their lease is released.
+ */
+public class PixelBufferCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PixelBufferCache.class);
+
+    private static final Counter HITS = Counter.build()
+            .name("omero_ms_pixel_buffer_cache_hits_total")
+            .help("Pixel buffer cache hits")
+            .register();
+
+    private static final Counter MISSES = Counter.build()
+            .name("omero_ms_pixel_buffer_cache_misses_total")
+            .help("Pixel buffer cache misses")
+            .register();
+
+    private static final Counter EVICTIONS = Counter.build()
+            .name("omero_ms_pixel_buffer_cache_evictions_total")
+            .help("Pixel buffer cache evictions")
+            .labelNames("cause")
+            .register();
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("omero_ms_pixel_buffer_cache_size")
+            .help("Number of open pixel buffers in the cache")
+            .register();
+
+    /** Maximum number of open pixel buffers to keep */
+    private final int maxSize;
+
+    /** Time after which an unused pixel buffer is closed in milliseconds */
+    private final long idleTimeout;
+
+    /** Open pixel buffers in least recently used order */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum number of open pixel buffers to keep; a value
+     * less than one disables caching.
+     * @param idleTimeout time after which an unused pixel buffer is closed
+     * in milliseconds.
+     */
+    public PixelBufferCache(int maxSize, long idleTimeout) {
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Acquires a lease on an open pixel buffer, opening it with
+     * <code>loader</code> if it is not already in the cache.  The lease
+     * must be closed once the caller has finished reading.
+     * @param pixelsId {@link ome.model.core.Pixels} identifier.
+     * @param resolution resolution level the buffer is opened at or
+     * <code>null</code> for the default.
+     * @param loader opens a new pixel buffer at <code>resolution</code>.
+     * @return See above.
+     * @throws Exception If there was an error opening the pixel buffer.
+     */
+    public Lease acquire(
+            long pixelsId, Integer resolution, Callable<PixelBuffer> loader)
+                    throws Exception {
+        String key = pixelsId + "/" + resolution;
+        if (maxSize > 0) {
+            synchronized (this) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    HITS.inc();
+                    entry.lastAccess = System.currentTimeMillis();
+                    return new Lease(entry.retain());
+                }
+            }
+        }
+        MISSES.inc();
+        PixelBuffer pixelBuffer = loader.call();
+        Entry entry = new Entry(pixelBuffer).retain();
+        if (maxSize < 1 || !(pixelBuffer instanceof ZarrPixelBuffer)) {
+            entry.evict();
+            return new Lease(entry);
+        }
+
+        List<Entry> evicted = new ArrayList<Entry>();
+        Lease lease;
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                // Opened concurrently by another request; use theirs
+                existing.lastAccess = System.currentTimeMillis();
+                lease = new Lease(existing.retain());
+            } else {
+                entries.put(key, entry);
+                lease = new Lease(entry);
+                Iterator<Entry> i = entries.values().iterator();
+                while (entries.size() > maxSize && i.hasNext()) {
+                    evicted.add(i.next());
+                    i.remove();
+                    EVICTIONS.labels("size").inc();
+                }
+            }
+            SIZE.set(entries.size());
+        }
+        if (lease.entry != entry) {
+            entry.evict();
+            entry.release();
+        }
+        for (Entry e : evicted) {
+            e.evict();
+        }
+        return lease;
+    }
+
+    /**
+     * Evicts all pixel buffers which have not been used within the idle
+     * timeout.
+     */
+    public void evictExpired() {
+        List<Entry> evicted = new ArrayList<Entry>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Entry> i = entries.values().iterator();
+            while (i.hasNext()) {
+                Entry entry = i.next();
+                if (now - entry.lastAccess < idleTimeout) {
+                    // Access ordered; everything after this is newer
+                    break;
+                }
+                evicted.add(entry);
+                i.remove();
+                EVICTIONS.labels("idle").inc();
+            }
+            SIZE.set(entries.size());
+        }
+        for (Entry entry : evicted) {
+            entry.evict();
+        }
+    }
+
+    /**
+     * Evicts all pixel buffers.  Buffers with outstanding leases are closed
+     * when those leases are released.
+     */
+    public void invalidateAll() {
+        List<Entry> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<Entry>(entries.values());
+            entries.clear();
+            SIZE.set(0);
+        }
+        for (Entry entry : evicted) {
+            entry.evict();
+        }
+    }
+
+    /**
+     * Reference counted open pixel buffer.
+     */
+    private static class Entry {
+
+        private final PixelBuffer pixelBuffer;
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private int references = 0;
+
+        private boolean evicted = false;
+
+        Entry(PixelBuffer pixelBuffer) {
+            this.pixelBuffer = pixelBuffer;
+        }
+
+        synchronized Entry retain() {
+            references++;
+            return this;
+        }
+
+        synchronized void release() {
+            references--;
+            if (evicted && references == 0) {
+                close();
+            }
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            if (references == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                pixelBuffer.close();
+            } catch (IOException e) {
+                log.error("Exception while closing pixel buffer", e);
+            }
+        }
+    }
+
+    /**
+     * A caller's claim on an open pixel buffer.  The pixel buffer must not
+     * be used after the lease has been closed.
+     */
+    public static class Lease implements AutoCloseable {
+
+        private final Entry entry;
+
+        private boolean closed = false;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * @return The leased pixel buffer.
+         */
+        public PixelBuffer getPixelBuffer() {
+            return entry.pixelBuffer;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                entry.release();
+            }
+        }
+    }
+
+}
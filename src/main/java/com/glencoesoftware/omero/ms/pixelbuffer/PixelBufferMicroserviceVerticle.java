@@ -18,13 +18,16 @@
 
 package com.glencoesoftware.omero.ms.pixelbuffer;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 import com.glencoesoftware.omero.ms.core.OmeroWebJDBCSessionStore;
@@ -33,7 +36,10 @@ import com.glencoesoftware.omero.ms.core.OmeroWebSessionStore;
 import com.glencoesoftware.omero.ms.core.PrometheusSpanHandler;
 
 import brave.Tracing;
+import brave.http.HttpAdapter;
+import brave.http.HttpSampler;
 import brave.http.HttpTracing;
+import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
 
 import com.glencoesoftware.omero.ms.core.OmeroWebSessionRequestHandler;
@@ -45,26 +51,36 @@ import com.glencoesoftware.omero.ms.core.OmeroVerticleFactory;
 import io.vertx.config.ConfigRetriever;
 import io.vertx.config.ConfigRetrieverOptions;
 import io.vertx.config.ConfigStoreOptions;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
 import io.vertx.core.Promise;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
-import io.vertx.core.json.Json;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.JsonArray;
+import io.vertx.core.spi.VerticleFactory;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
 import zipkin2.Span;
 import zipkin2.reporter.AsyncReporter;
 import zipkin2.reporter.okhttp3.OkHttpSender;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.vertx.MetricsHandler;
 import io.prometheus.jmx.BuildInfoCollector;
 import io.prometheus.jmx.JmxCollector;
 import io.prometheus.client.hotspot.DefaultExports;
+import ome.model.core.Pixels;
 
 /**
  * Main entry point for the OMERO pixel buffer Vert.x microservice server.
@@ -80,14 +96,61 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(PixelBufferMicroserviceVerticle.class);
 
+    private static final Counter COALESCED = Counter.build()
+            .name("omero_ms_pixel_buffer_coalesced_requests_total")
+            .help("Tile requests attached to an identical in-flight request")
+            .register();
+
+    private static final Counter NOT_MODIFIED = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_not_modified_total")
+            .help("Conditional tile requests answered with 304 Not Modified")
+            .register();
+
+    private static final Histogram SCHEDULER_WAIT = Histogram.build()
+            .name("omero_ms_pixel_buffer_scheduler_wait_seconds")
+            .help("Time requests waited to be dispatched to the workers by "
+                  + "estimated cost")
+            .labelNames("cost")
+            .buckets(0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+                     2.5, 5, 10)
+            .register();
+
+    /** Side of the plane assumed for requests of an Image not yet seen */
+    private static final long DEFAULT_PLANE_SIZE = 4096;
+
+    /**
+     * Resolution levels assumed for full resolution requests of an Image
+     * not yet opened
+     */
+    private static final int DEFAULT_RESOLUTION_LEVELS = 6;
+
+    /** Routing context key of the {@link System#nanoTime()} of arrival */
+    private static final String REQUEST_START = "omero_ms.request_start";
+
+    /** Content type of batch tile responses */
+    public static final String BATCH_CONTENT_TYPE =
+            "application/vnd.omero-ms-pixel-buffer.tiles";
+
     /** OMERO server Spring application context. */
-    private ApplicationContext context;
+    private ConfigurableApplicationContext context;
+
+    /** Cache of open pixel buffers shared by all worker verticles */
+    private PixelBufferCache pixelBufferCache;
+
+    /** Cache of Pixels metadata shared by all worker verticles */
+    private PixelsCache pixelsCache;
+
+    /** Pool of joined OMERO sessions shared by all worker verticles */
+    private OmeroSessionPool sessionPool;
+
+    /** Region reader shared by all worker verticles */
+    private RegionReader regionReader;
 
     /** OMERO.web session store */
     private OmeroWebSessionStore sessionStore;
 
     /** VerticleFactory */
-    private OmeroVerticleFactory verticleFactory;
+    private VerticleFactory verticleFactory;
 
     /** Default number of workers to be assigned to the worker verticle */
     private int DEFAULT_WORKER_POOL_SIZE;
@@ -101,6 +164,56 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
 
     private Tracing tracing;
 
+    /** Cache of encoded tile responses or <code>null</code> if disabled */
+    private TileResponseCache tileCache;
+
+    /** On-disk cache of encoded tile responses or <code>null</code> */
+    private DiskTileCache diskTileCache;
+
+    /** Maximum number of tiles in a single batch request */
+    private int maxBatchSize;
+
+    /** Maximum number of tiles of a batch requested at once */
+    private int maxBatchOutstanding;
+
+    /** Encoder of raw tile responses or <code>null</code> if disabled */
+    private ContentEncoder contentEncoder;
+
+    /** Fingerprint of the workers' encoder configuration by format */
+    private Map<String, String> encoderFingerprints;
+
+    /** Cache-Control of tile responses by format, <code>raw</code> if none */
+    private final Map<String, String> cacheControl =
+            new HashMap<String, String>();
+
+    /** Limit on requests in flight to the workers or <code>null</code> */
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    /** Retry-After of responses shed over the concurrency limit */
+    private String retryAfter;
+
+    /** Queues requests for the workers or <code>null</code> */
+    private TileScheduler tileScheduler;
+
+    /** Whether the scheduler keeps a queue per OMERO session */
+    private boolean fairScheduling;
+
+    /** Whether the scheduler dispatches the cheapest requests first */
+    private boolean priorityScheduling;
+
+    /** Rank added per resolution level above the smallest */
+    private double resolutionWeight;
+
+    /** Header carrying a client's priority or <code>null</code> */
+    private String priorityHeader;
+
+    /** Largest priority, either way, a client may ask for */
+    private int maxPriority;
+
+    /** Tile requests in flight to the worker verticles by tile key */
+    private final Map<String, InFlightTile> inFlight =
+            new HashMap<String, InFlightTile>();
+
     static {
         com.glencoesoftware.omero.ms.core.SSLUtils.fixDisabledAlgorithms();
     }
@@ -154,11 +267,7 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
             System.setProperty(entry.getKey(), (String) entry.getValue());
         });
 
-        context = new ClassPathXmlApplicationContext(
-                "classpath:ome/config.xml",
-                "classpath:ome/services/datalayer.xml",
-                "classpath*:blitz/*PixelBuffer.xml",
-                "classpath*:beanRefContext.xml");
+        context = createApplicationContext();
 
         JsonObject httpTracingConfig =
                 config.getJsonObject("http-tracing", new JsonObject());
@@ -168,12 +277,15 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
             String zipkinUrl = httpTracingConfig.getString("zipkin-url");
             try {
                 log.info("Tracing enabled: {}", zipkinUrl);
+                Sampler sampler = createSampler(
+                        httpTracingConfig.getJsonObject(
+                                "sampler", new JsonObject()));
                 if(Pattern.matches("^http.*", zipkinUrl)) {
                     sender = OkHttpSender.create(zipkinUrl);
                     spanReporter = AsyncReporter.create(sender);
                     PrometheusSpanHandler prometheusSpanHandler = new PrometheusSpanHandler();
                     tracing = Tracing.newBuilder()
-                        .sampler(Sampler.ALWAYS_SAMPLE)
+                        .sampler(sampler)
                         .localServiceName("omero-ms-pixel-buffer")
                         .addFinishedSpanHandler(prometheusSpanHandler)
                         .spanReporter(spanReporter)
@@ -182,7 +294,7 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
                     PrometheusSpanHandler prometheusSpanHandler = new PrometheusSpanHandler();
                     spanReporter = new LogSpanReporter();
                     tracing = Tracing.newBuilder()
-                            .sampler(Sampler.ALWAYS_SAMPLE)
+                            .sampler(sampler)
                             .localServiceName("omero-ms-pixel-buffer")
                             .addFinishedSpanHandler(prometheusSpanHandler)
                             .spanReporter(spanReporter)
@@ -199,7 +311,14 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
             tracing = Tracing.newBuilder().build();
             tracing.setNoop(true);
         }
-        httpTracing = HttpTracing.newBuilder(tracing).build();
+        HttpTracing.Builder httpTracingBuilder = HttpTracing.newBuilder(tracing);
+        String forceSampleHeader =
+                httpTracingConfig.getString("force-sample-header");
+        if (forceSampleHeader != null) {
+            httpTracingBuilder.serverSampler(
+                    new ForceSampleHttpSampler(forceSampleHeader));
+        }
+        httpTracing = httpTracingBuilder.build();
 
         JsonObject jmxMetricsConfig =
                 config.getJsonObject("jmx-metrics", new JsonObject());
@@ -219,20 +338,219 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
             log.info("JMX Metrics NOT Enabled");
         }
 
-        verticleFactory = (OmeroVerticleFactory)
-                context.getBean("omero-ms-verticlefactory");
-        vertx.registerVerticleFactory(verticleFactory);
-        // Deploy our dependency verticles
+        JsonObject pixelBufferCacheConfig =
+                config.getJsonObject("pixel-buffer-cache", new JsonObject());
+        pixelBufferCache = new PixelBufferCache(
+                pixelBufferCacheConfig.getInteger("max-size", 64),
+                pixelBufferCacheConfig.getLong("idle-timeout", 300L) * 1000);
+        context.getBeanFactory().registerSingleton(
+                "omero-ms-pixel-buffer-cache", pixelBufferCache);
+        vertx.setPeriodic(60000, id -> pixelBufferCache.evictExpired());
+
+        JsonObject pixelsCacheConfig =
+                config.getJsonObject("pixels-cache", new JsonObject());
+        pixelsCache = createPixelsCache(pixelsCacheConfig);
+        context.getBeanFactory().registerSingleton(
+                "omero-ms-pixels-cache", pixelsCache);
+        vertx.setPeriodic(60000, id -> pixelsCache.evictExpired());
+
+        sessionPool = createSessionPool(config);
+        context.getBeanFactory().registerSingleton(
+                "omero-ms-session-pool", sessionPool);
+        // Closing sessions is a round trip to the OMERO server
+        vertx.setPeriodic(10000, id -> vertx.<Void>executeBlocking(
+                promise -> {
+                    sessionPool.evictIdle();
+                    promise.complete();
+                }, false, null));
+
+        JsonObject parallelReadConfig =
+                config.getJsonObject("parallel-read", new JsonObject());
+        regionReader = new RegionReader(
+                parallelReadConfig.getInteger(
+                        "parallelism",
+                        Runtime.getRuntime().availableProcessors()),
+                parallelReadConfig.getLong("threshold", 16L) * 1024 * 1024);
+        context.getBeanFactory().registerSingleton(
+                "omero-ms-region-reader", regionReader);
+
+        JsonObject tileCacheConfig =
+                config.getJsonObject("tile-cache", new JsonObject());
+        long tileCacheSize = tileCacheConfig.getLong("max-size", 0L);
+        if (tileCacheSize > 0) {
+            log.info("Tile cache enabled: {}MiB", tileCacheSize);
+            tileCache = new TileResponseCache(
+                    tileCacheSize * 1024 * 1024,
+                    tileCacheConfig.getInteger("max-tile-size", 8192) * 1024);
+        }
+
+        JsonObject diskTileCacheConfig =
+                config.getJsonObject("tile-disk-cache", new JsonObject());
+        if (diskTileCacheConfig.getBoolean("enabled", false)) {
+            String directory = diskTileCacheConfig.getString("directory");
+            if (directory == null) {
+                throw new IllegalArgumentException(
+                    "'tile-disk-cache.directory' missing from configuration");
+            }
+            long maxSize = diskTileCacheConfig.getLong("max-size", 10240L);
+            log.info("Tile disk cache enabled: {} {}MiB", directory, maxSize);
+            diskTileCache = new DiskTileCache(
+                    vertx, Paths.get(directory), maxSize * 1024 * 1024,
+                    diskTileCacheConfig.getInteger("max-tile-size", 8192)
+                        * 1024);
+        }
+
+        maxBatchSize = config.getJsonObject("batch", new JsonObject())
+                .getInteger("max-tiles", 64);
+
+        JsonObject cacheControlConfig = config
+                .getJsonObject("http-cache", new JsonObject())
+                .getJsonObject("cache-control", new JsonObject());
+        for (String format : new String[] {"raw", "png", "tif", "chunk"}) {
+            cacheControl.put(format, cacheControlConfig.getString(
+                    format, "private, no-cache"));
+        }
+
+        encoderFingerprints = PixelBufferVerticle.encoderFingerprints(config);
+
+        JsonObject contentEncodingConfig =
+                config.getJsonObject("content-encoding", new JsonObject());
+        if (contentEncodingConfig.getBoolean("enabled", false)) {
+            List<ContentEncoder.Encoding> encodings =
+                    new ArrayList<ContentEncoder.Encoding>();
+            for (Object encoding : contentEncodingConfig.getJsonArray(
+                    "encodings", new JsonArray().add("zstd").add("gzip")
+                        .add("deflate"))) {
+                encodings.add(ContentEncoder.Encoding.valueOf(
+                        encoding.toString().toUpperCase()));
+            }
+            log.info("Content encoding enabled: {}", encodings);
+            contentEncoder = new ContentEncoder(
+                    encodings,
+                    contentEncodingConfig.getInteger("min-size", 1024),
+                    contentEncodingConfig.getInteger("level", 6),
+                    contentEncodingConfig.getInteger("zstd-level", 3));
+        }
+
+        // Tile contexts and results stay within this JVM; pass by reference
+        vertx.eventBus()
+                .registerDefaultCodec(TileCtx.class, new TileCtxCodec())
+                .registerDefaultCodec(TileResult.class, new TileResultCodec());
+
         int workerPoolSize = Optional.ofNullable(
                 config.getInteger("worker_pool_size")
                 ).orElse(DEFAULT_WORKER_POOL_SIZE);
-        vertx.deployVerticle("omero:omero-ms-pixel-buffer-verticle",
-                new DeploymentOptions()
-                        .setWorker(true)
-                        .setInstances(workerPoolSize)
-                        .setWorkerPoolName("pixel-buffer-pool")
-                        .setWorkerPoolSize(workerPoolSize)
-                        .setConfig(config));
+        // Requests the worker verticles can handle at once
+        int capacity = workerPoolSize;
+        DeploymentOptions deploymentOptions =
+                new DeploymentOptions().setConfig(config);
+        JsonObject executionConfig =
+                config.getJsonObject("execution", new JsonObject());
+        boolean virtualThreads = PixelBufferVerticle.VIRTUAL_THREADS_MODE
+                .equals(executionConfig.getString("mode", "worker"));
+        if (virtualThreads
+                && !PixelBufferVerticle.isVirtualThreadSupported()) {
+            log.warn("Virtual threads require Java 21; using {} workers",
+                    workerPoolSize);
+            virtualThreads = false;
+        }
+        ResourceLimits resourceLimits = ResourceLimits.UNLIMITED;
+        if (virtualThreads) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            capacity = executionConfig.getInteger("max-requests", 256);
+            resourceLimits = new ResourceLimits(
+                    executionConfig.getInteger("database-permits", 64),
+                    executionConfig.getInteger(
+                            "filesystem-permits", processors * 4),
+                    executionConfig.getInteger("encode-permits", processors));
+            // A single event loop instance which hands each request to a
+            // virtual thread
+            deploymentOptions.setInstances(1);
+            log.info("Handling up to {} requests on virtual threads",
+                    capacity);
+        } else {
+            deploymentOptions
+                    .setWorker(true)
+                    .setInstances(workerPoolSize)
+                    .setWorkerPoolName("pixel-buffer-pool")
+                    .setWorkerPoolSize(workerPoolSize);
+        }
+        context.getBeanFactory().registerSingleton(
+                "omero-ms-resource-limits", resourceLimits);
+        maxBatchOutstanding = capacity;
+
+        verticleFactory = createVerticleFactory();
+        vertx.registerVerticleFactory(verticleFactory);
+        // Deploy our dependency verticles
+        vertx.deployVerticle(
+                verticleFactory.prefix() + ":omero-ms-pixel-buffer-verticle",
+                deploymentOptions);
+
+        JsonObject concurrencyLimitConfig =
+                config.getJsonObject("concurrency-limit", new JsonObject());
+        if (concurrencyLimitConfig.getBoolean("enabled", false)) {
+            // Fewer requests in flight than workers would leave them idle
+            int minLimit = concurrencyLimitConfig.getInteger(
+                    "min-limit", capacity);
+            concurrencyLimiter = new ConcurrencyLimiter(
+                    concurrencyLimitConfig.getInteger(
+                            "initial-limit", capacity * 2),
+                    minLimit,
+                    concurrencyLimitConfig.getInteger(
+                            "max-limit", Math.max(minLimit, capacity * 20)),
+                    concurrencyLimitConfig.getDouble("tolerance", 1.5),
+                    concurrencyLimitConfig.getDouble("smoothing", 0.2));
+            retryAfter = String.valueOf(
+                    concurrencyLimitConfig.getInteger("retry-after", 1));
+            log.info("Concurrency limit enabled: initial {}",
+                    concurrencyLimiter.getLimit());
+        }
+
+        JsonObject fairSchedulingConfig =
+                config.getJsonObject("fair-scheduling", new JsonObject());
+        JsonObject prioritySchedulingConfig =
+                config.getJsonObject("priority-scheduling", new JsonObject());
+        fairScheduling = fairSchedulingConfig.getBoolean("enabled", false);
+        priorityScheduling =
+                prioritySchedulingConfig.getBoolean("enabled", false);
+        int maxPerSession = capacity;
+        Map<String, Double> weights = new HashMap<String, Double>();
+        if (fairScheduling) {
+            double maxSessionShare =
+                    fairSchedulingConfig.getDouble("max-session-share", 0.5);
+            if (maxSessionShare <= 0 || maxSessionShare > 1) {
+                throw new IllegalArgumentException(
+                        "Invalid fair-scheduling.max-session-share: "
+                        + maxSessionShare);
+            }
+            for (Map.Entry<String, Object> entry : fairSchedulingConfig
+                    .getJsonObject("weights", new JsonObject())) {
+                weights.put(entry.getKey(),
+                        ((Number) entry.getValue()).doubleValue());
+            }
+            maxPerSession = Math.max(
+                    1, (int) Math.ceil(capacity * maxSessionShare));
+            log.info("Fair scheduling enabled: {} of {} workers per session",
+                    maxPerSession, capacity);
+        }
+        if (priorityScheduling) {
+            resolutionWeight = prioritySchedulingConfig.getDouble(
+                    "resolution-weight", 1.0);
+            priorityHeader = prioritySchedulingConfig.getString(
+                    "priority-header", "X-Omero-Ms-Priority");
+            maxPriority = prioritySchedulingConfig.getInteger(
+                    "max-priority", 8);
+            log.info("Priority scheduling enabled");
+        }
+        if (fairScheduling || priorityScheduling) {
+            // Dispatching more than there are workers would only queue the
+            // surplus, in order of arrival, on the event bus
+            tileScheduler = new TileScheduler(
+                    capacity, maxPerSession,
+                    fairSchedulingConfig.getDouble("default-weight", 1.0),
+                    weights,
+                    prioritySchedulingConfig.getLong("aging-interval", 250L));
+        }
 
         HttpServer server = vertx.createHttpServer();
         Router router = Router.router(vertx);
@@ -256,6 +574,102 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
 
         // OMERO session handler which picks up the session key from the
         // OMERO.web session and joins it.
+        Handler<RoutingContext> sessionHandler = createSessionHandler(config);
+
+        // Request bodies must be read before any asynchronous handler runs
+        router.post("/tiles/:imageId")
+            .handler(BodyHandler.create(false).setBodyLimit(1024 * 1024));
+
+        router.route().handler(event -> {
+            event.put(REQUEST_START, System.nanoTime());
+            event.next();
+        });
+        router.route().handler(sessionHandler);
+
+        // Pixel buffer request handlers
+        router.get(
+                "/tile/:imageId/:z/:c/:t")
+            .handler(this::getTile);
+        router.post(
+                "/tiles/:imageId")
+            .handler(this::getTiles);
+
+        int port = config.getInteger("port");
+        log.info("Starting HTTP server *:{}", port);
+        server.requestHandler(router).listen(port, result -> {
+            if (result.succeeded()) {
+                prom.complete();
+            } else {
+                prom.fail(result.cause());
+            }
+        });
+    }
+
+    /**
+     * Creates the OMERO server Spring application context which the worker
+     * verticles and the shared caches are registered with.
+     * @return See above.
+     */
+    protected ConfigurableApplicationContext createApplicationContext() {
+        return new ClassPathXmlApplicationContext(
+                "classpath:ome/config.xml",
+                "classpath:ome/services/datalayer.xml",
+                "classpath*:blitz/*PixelBuffer.xml",
+                "classpath*:beanRefContext.xml");
+    }
+
+    /**
+     * Creates the cache of Pixels metadata shared by all worker verticles.
+     * @param config <code>pixels-cache</code> configuration.
+     * @return See above.
+     */
+    protected PixelsCache createPixelsCache(JsonObject config) {
+        return new PixelsCache(
+                config.getInteger("max-size", 10000),
+                config.getLong("ttl", 300L) * 1000,
+                config.getLong("permission-ttl", 60L) * 1000);
+    }
+
+    /**
+     * Creates the pool of joined OMERO sessions shared by all worker
+     * verticles.
+     * @param config Current configuration
+     * @return See above.
+     */
+    protected OmeroSessionPool createSessionPool(JsonObject config) {
+        JsonObject omero = config.getJsonObject("omero");
+        if (omero == null) {
+            throw new IllegalArgumentException(
+                "'omero' block missing from configuration");
+        }
+        JsonObject sessionPoolConfig =
+                config.getJsonObject("omero-session-pool", new JsonObject());
+        return new OmeroSessionPool(
+                omero.getString("host"),
+                omero.getInteger("port"),
+                sessionPoolConfig.getInteger("max-size", 256),
+                sessionPoolConfig.getLong("idle-timeout", 60L) * 1000,
+                sessionPoolConfig.getLong("validation-interval", 10L) * 1000);
+    }
+
+    /**
+     * Creates the factory which the worker verticles are deployed with.
+     * @return See above.
+     */
+    protected VerticleFactory createVerticleFactory() {
+        return context.getBean(
+                "omero-ms-verticlefactory", OmeroVerticleFactory.class);
+    }
+
+    /**
+     * Creates the handler which resolves the OMERO session key of each
+     * request from its OMERO.web session and stores it in the routing
+     * context as <code>omero.session_key</code>.
+     * @param config Current configuration
+     * @return See above.
+     */
+    protected Handler<RoutingContext> createSessionHandler(
+            JsonObject config) {
         JsonObject sessionStoreConfig = config.getJsonObject("session-store");
         if (sessionStoreConfig == null) {
             throw new IllegalArgumentException(
@@ -273,24 +687,30 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
             throw new IllegalArgumentException(
                 "Missing/invalid value for 'session-store.type' in config");
         }
+        return new OmeroWebSessionRequestHandler(config, sessionStore);
+    }
 
-        router.route().handler(
-                new OmeroWebSessionRequestHandler(config, sessionStore));
-
-        // Pixel buffer request handlers
-        router.get(
-                "/tile/:imageId/:z/:c/:t")
-            .handler(this::getTile);
-
-        int port = config.getInteger("port");
-        log.info("Starting HTTP server *:{}", port);
-        server.requestHandler(router).listen(port, result -> {
-            if (result.succeeded()) {
-                prom.complete();
-            } else {
-                prom.fail(result.cause());
-            }
-        });
+    /**
+     * Creates the sampler which decides which requests are traced.
+     * @param config <code>http-tracing.sampler</code> configuration.
+     * @return See above.
+     */
+    private static Sampler createSampler(JsonObject config) {
+        String type = config.getString("type", "always");
+        switch (type) {
+            case "always":
+                return Sampler.ALWAYS_SAMPLE;
+            case "never":
+                return Sampler.NEVER_SAMPLE;
+            case "probabilistic":
+                return Sampler.create(config.getFloat("probability", 0.01f));
+            case "rate-limited":
+                return RateLimitingSampler.create(
+                        config.getInteger("traces-per-second", 10));
+            default:
+                throw new IllegalArgumentException(
+                        "Invalid 'http-tracing.sampler.type': " + type);
+        }
     }
 
     /**
@@ -299,7 +719,21 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
      */
     @Override
     public void stop() throws Exception {
-        sessionStore.close();
+        if (sessionStore != null) {
+            sessionStore.close();
+        }
+        if (pixelBufferCache != null) {
+            pixelBufferCache.invalidateAll();
+        }
+        if (sessionPool != null) {
+            sessionPool.close();
+        }
+        if (tileCache != null) {
+            tileCache.clear();
+        }
+        if (regionReader != null) {
+            regionReader.close();
+        }
         tracing.close();
         if (spanReporter != null) {
             spanReporter.close();
@@ -349,53 +783,1015 @@ public class PixelBufferMicroserviceVerticle extends OmeroMsAbstractVerticle {
             return;
         }
         tileCtx.injectCurrentTraceContext();
+        tileCtx.priority = clientPriority(request);
+        observeSessionResolution(event, tileCtx);
 
         final HttpServerResponse response = event.response();
-        vertx.eventBus().<byte[]>request(
-                PixelBufferVerticle.GET_TILE_EVENT,
-                Json.encode(tileCtx), result -> {
-            try {
+        final String key = tileCtx.tileKey();
+        response.closeHandler(v -> abandon(key, tileCtx));
+        // Only raw tiles are worth encoding; PNG and TIFF are compressed
+        final ContentEncoder.Encoding encoding =
+                contentEncoder == null || tileCtx.format != null? null
+                        : contentEncoder.negotiate(
+                                request.getHeader("Accept-Encoding"));
+        Handler<AsyncResult<Message<TileResult>>> handler = result -> {
+            if (result.failed()) {
+                sendFailure(response, result.cause());
+                return;
+            }
+            TileResult tile = result.result().body();
+            if (tile.etag != null) {
+                response.headers().set("ETag", tile.etag);
+            }
+            if (tile.isStreamed()) {
+                streamTile(response, tileCtx, result.result());
+                return;
+            }
+            tile.headers.forEach(response.headers()::set);
+            sendTile(
+                    response, tileCtx, Buffer.buffer(tile.data),
+                    tile.filename, encoding, null);
+        };
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        final boolean inMemory = tileCache != null && tileCache.touch(key);
+        final boolean onDisk = !inMemory && diskTileCache != null
+                && diskTileCache.contains(key);
+        if (ifNoneMatch != null || inMemory || onDisk) {
+            // Cached bytes may only be shared, and the client's copy
+            // confirmed, once the session is allowed
+            this.<Long>request(
+                    PixelBufferVerticle.CAN_READ_EVENT,
+                    tileCtx, result -> {
                 if (result.failed()) {
-                    Throwable t = result.cause();
-                    int statusCode = 404;
-                    if (t instanceof ReplyException) {
-                        statusCode = ((ReplyException) t).failureCode();
+                    sendFailure(response, result.cause());
+                    return;
+                }
+                String etag = tileCtx.etag(
+                        result.result().body(), encoderFingerprints);
+                String matched = ifNoneMatch == null? null
+                        : matchEtag(ifNoneMatch, etag, encoding);
+                if (matched != null) {
+                    sendNotModified(response, tileCtx, matched);
+                    return;
+                }
+                response.headers().set("ETag", etag);
+                TileResponseCache.CachedTile cachedTile =
+                        inMemory? tileCache.get(key, etag) : null;
+                if (cachedTile != null) {
+                    sendTile(
+                        response, tileCtx, cachedTile.data,
+                        cachedTile.filename, encoding,
+                        v -> cachedTile.release());
+                    return;
+                }
+                // Also finds tiles evicted from memory, or stale there,
+                // while the session was checked
+                DiskTileCache.CachedTile cachedFile =
+                        (onDisk || inMemory) && diskTileCache != null?
+                                diskTileCache.get(key, etag) : null;
+                if (cachedFile != null) {
+                    sendTileFile(
+                            response, tileCtx, key, cachedFile, encoding,
+                            handler);
+                    return;
+                }
+                requestTile(tileCtx, true, handler);
+            });
+            return;
+        }
+        requestTile(tileCtx, false, handler);
+    }
+
+    /**
+     * Records the time taken to resolve the OMERO.web session of a request.
+     * @param event current routing context.
+     * @param tileCtx tile that was requested.
+     */
+    private void observeSessionResolution(
+            RoutingContext event, TileCtx tileCtx) {
+        Long start = event.get(REQUEST_START);
+        if (start != null) {
+            TileMetrics.observe(
+                    TileMetrics.SESSION_RESOLUTION, tileCtx, null, start);
+        }
+    }
+
+    /**
+     * Sends a tile context to the worker verticles, noting when it was sent
+     * so that the time it waits for a worker can be measured.  With fair
+     * scheduling enabled the tile context waits in its session's queue
+     * until the scheduler dispatches it; one cancelled in the meantime
+     * fails with 499 without being sent.
+     * @param address event bus address to send to.
+     * @param tileCtx tile context to send.
+     * @param handler handler for the reply.
+     */
+    private <T> void request(
+            String address, TileCtx tileCtx,
+            Handler<AsyncResult<Message<T>>> handler) {
+        long start = System.nanoTime();
+        tileCtx.sent = start;
+        if (tileScheduler == null) {
+            send(address, tileCtx, handler);
+            return;
+        }
+        // A single queue shared by every session without fair scheduling
+        String sessionKey = fairScheduling? tileCtx.omeroSessionKey : "";
+        long cost = estimateCost(address, tileCtx);
+        double rank = priorityScheduling? rank(tileCtx, cost) : 0;
+        tileScheduler.submit(sessionKey, rank, () -> {
+            SCHEDULER_WAIT.labels(costClass(cost))
+                .observe((System.nanoTime() - start) / 1e9);
+            if (tileCtx.isCancelled()) {
+                TileMetrics.cancelled(TileMetrics.QUEUE_WAIT, tileCtx);
+                tileScheduler.complete(sessionKey);
+                handler.handle(Future.failedFuture(new ReplyException(
+                        ReplyFailure.RECIPIENT_FAILURE, 499, "Cancelled")));
+                return;
+            }
+            this.<T>send(address, tileCtx, result -> {
+                // Streamed tiles free their worker with the first band
+                tileScheduler.complete(sessionKey);
+                handler.handle(result);
+            });
+        });
+    }
+
+    /**
+     * Sends a tile context, which has been dispatched by the scheduler if
+     * there is one, to the worker verticles.  Fails with 503, without
+     * sending, once the concurrency limit has been reached.  Permission
+     * checks read no pixel data and are not limited, so that they are not
+     * shed in favour of the tiles they gate.  The latency the limit
+     * adapts to is measured from here, excluding time spent queued.
+     * @param address event bus address to send to.
+     * @param tileCtx tile context to send.
+     * @param handler handler for the reply.
+     */
+    private <T> void send(
+            String address, TileCtx tileCtx,
+            Handler<AsyncResult<Message<T>>> handler) {
+        if (concurrencyLimiter == null
+                || PixelBufferVerticle.CAN_READ_EVENT.equals(address)) {
+            vertx.eventBus().request(address, tileCtx, handler);
+            return;
+        }
+        if (!concurrencyLimiter.tryAcquire()) {
+            handler.handle(Future.failedFuture(new ReplyException(
+                    ReplyFailure.RECIPIENT_FAILURE, 503,
+                    "Over concurrency limit")));
+            return;
+        }
+        long start = System.nanoTime();
+        vertx.eventBus().<T>request(address, tileCtx, result -> {
+            if (result.succeeded()) {
+                // Streamed tiles release their permit with the first band
+                concurrencyLimiter.onSuccess(start);
+            } else if (isDropped(result.cause())) {
+                concurrencyLimiter.onDropped();
+            } else {
+                concurrencyLimiter.onIgnore();
+            }
+            handler.handle(result);
+        });
+    }
+
+    /**
+     * Estimates the raw pixel data a request will read from the region
+     * requested and, if its Image has been seen before, its pixels type.
+     * A request for a whole plane is assumed to read the full resolution
+     * plane.
+     * @param address event bus address the request is sent to.
+     * @param tileCtx tile context of the request.
+     * @return Estimated number of bytes read.
+     */
+    private long estimateCost(String address, TileCtx tileCtx) {
+        if (!PixelBufferVerticle.GET_TILE_EVENT.equals(address)) {
+            // Permission checks read no pixel data
+            return 0;
+        }
+        Pixels pixels = pixelsCache.peek(tileCtx.imageId);
+        long width = tileCtx.region.getWidth();
+        long height = tileCtx.region.getHeight();
+        if (width <= 0 || height <= 0) {
+            width = pixels == null? DEFAULT_PLANE_SIZE : pixels.getSizeX();
+            height = pixels == null? DEFAULT_PLANE_SIZE : pixels.getSizeY();
+        }
+        int bytesPerPixel = pixels == null?
+                2 : Math.max(1, pixels.getPixelsType().getBitSize() / 8);
+        return width * height * bytesPerPixel;
+    }
+
+    /**
+     * Ranks a request for the scheduler, lowest first: doubling the bytes
+     * read adds one, as does each resolution level above the smallest
+     * with the default <code>resolution-weight</code>, and the client's
+     * priority is subtracted.  A request without a resolution is for the
+     * full resolution, the highest level.
+     * @param tileCtx tile context of the request.
+     * @param cost estimated number of bytes read.
+     * @return See above.
+     */
+    private double rank(TileCtx tileCtx, long cost) {
+        double rank = Math.log(Math.max(1, cost)) / Math.log(2);
+        // OMERO resolution levels count up from the smallest
+        int level;
+        if (tileCtx.resolution != null) {
+            level = tileCtx.resolution;
+        } else {
+            Integer levels = pixelsCache.peekResolutionLevels(
+                    tileCtx.imageId);
+            level = (levels == null? DEFAULT_RESOLUTION_LEVELS : levels) - 1;
+        }
+        rank += resolutionWeight * level;
+        return rank - tileCtx.priority;
+    }
+
+    /**
+     * @param cost estimated number of bytes read by a request.
+     * @return Label of the cost of a request for metrics.
+     */
+    private static String costClass(long cost) {
+        if (cost == 0) {
+            return "none";
+        }
+        if (cost < 1024 * 1024) {
+            return "small";
+        }
+        return cost < 16 * 1024 * 1024? "medium" : "large";
+    }
+
+    /**
+     * @param request request for one or more tiles.
+     * @return Scheduling priority the client asked for, limited to
+     * <code>max-priority</code>, or zero.
+     */
+    private int clientPriority(HttpServerRequest request) {
+        String value = priorityHeader == null?
+                null : request.getHeader(priorityHeader);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int priority = Integer.parseInt(value.trim());
+            return Math.max(-maxPriority, Math.min(maxPriority, priority));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param t cause of the failure of a request to the worker verticles.
+     * @return <code>true</code> if the failure is a sign of overload, a
+     * timeout or an error on the server, rather than a problem with the
+     * request itself.
+     */
+    private static boolean isDropped(Throwable t) {
+        if (!(t instanceof ReplyException)) {
+            return true;
+        }
+        ReplyException e = (ReplyException) t;
+        return e.failureType() != ReplyFailure.RECIPIENT_FAILURE
+                || e.failureCode() >= 500;
+    }
+
+    /**
+     * Ends a tile response with a failure status code derived from the
+     * failure of a request to the worker verticles.
+     * @param response response to end.
+     * @param t cause of the failure.
+     */
+    private void sendFailure(HttpServerResponse response, Throwable t) {
+        int statusCode = failureStatus(t);
+        if (!response.closed()) {
+            if (statusCode == 503 && retryAfter != null) {
+                response.headers().set("Retry-After", retryAfter);
+            }
+            response.setStatusCode(statusCode).end();
+        }
+        log.debug("Response ended");
+    }
+
+    /**
+     * @param t cause of the failure of a request to the worker verticles.
+     * @return HTTP status code for the failure.
+     */
+    private int failureStatus(Throwable t) {
+        int statusCode = 404;
+        if (t instanceof ReplyException) {
+            statusCode = ((ReplyException) t).failureCode();
+        }
+        if (statusCode < 1) {
+            log.error("Unexpected failure code {} setting 500 ",
+                      statusCode, t);
+            statusCode = 500;
+        }
+        return statusCode;
+    }
+
+    /**
+     * Batch tile retrieval event handler.  The request body is a JSON array
+     * of objects each with the same parameters as a single tile request
+     * (<code>z</code>, <code>c</code>, <code>t</code>,
+     * <code>resolution</code>, <code>x</code>, <code>y</code>,
+     * <code>w</code>, <code>h</code> and <code>format</code>) for the
+     * Image in the URL.
+     * <p>
+     * Once the session has been confirmed to be able to read the Image the
+     * tiles are requested from the worker verticles concurrently and
+     * responded with as a chunked body of frames, in completion order.  Each
+     * frame is the index of the tile in the request, the HTTP status code
+     * for the tile and the length of the tile, all as big-endian 32-bit
+     * integers, followed by the tile itself.  Tiles which could not be
+     * retrieved have a length of zero.
+     * @param event Current routing context.
+     */
+    private void getTiles(RoutingContext event) {
+        log.info("Get tiles");
+        HttpServerRequest request = event.request();
+        HttpServerResponse response = event.response();
+        String omeroSessionKey = event.get("omero.session_key");
+        List<TileCtx> tileCtxs = new ArrayList<TileCtx>();
+        int priority = clientPriority(request);
+        try {
+            JsonArray entries = event.getBodyAsJsonArray();
+            if (entries == null || entries.isEmpty()) {
+                throw new IllegalArgumentException("No tiles requested");
+            }
+            if (entries.size() > maxBatchSize) {
+                throw new IllegalArgumentException(
+                        "At most " + maxBatchSize + " tiles may be requested");
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                MultiMap params = MultiMap.caseInsensitiveMultiMap();
+                for (Map.Entry<String, Object> entry
+                        : entries.getJsonObject(i)) {
+                    if (entry.getValue() != null) {
+                        params.set(
+                                entry.getKey(), entry.getValue().toString());
                     }
-                    if (statusCode < 1) {
-                        log.error("Unexpected failure code {} setting 500 ",
-                                  statusCode, t);
-                        statusCode = 500;
+                }
+                params.set("imageId", request.getParam("imageId"));
+                TileCtx tileCtx = new TileCtx(params, omeroSessionKey);
+                if (i == 0) {
+                    observeSessionResolution(event, tileCtx);
+                }
+                if (PixelBufferVerticle.CHUNK_FORMAT.equals(tileCtx.format)) {
+                    // Frames have no room for the chunk's headers
+                    throw new IllegalArgumentException(
+                            "Chunks may not be requested in a batch");
+                }
+                tileCtx.injectCurrentTraceContext();
+                tileCtx.priority = priority;
+                tileCtxs.add(tileCtx);
+            }
+        } catch (IllegalArgumentException | ClassCastException
+                | DecodeException e) {
+            response.setStatusCode(400).end(String.valueOf(e.getMessage()));
+            return;
+        }
+        List<String> keys = new ArrayList<String>();
+        tileCtxs.forEach(tileCtx -> keys.add(tileCtx.tileKey()));
+        response.closeHandler(v -> {
+            for (int i = 0; i < tileCtxs.size(); i++) {
+                abandon(keys.get(i), tileCtxs.get(i));
+            }
+        });
+
+        // Populates the Pixels metadata cache so that the Image is only
+        // looked up once for the whole batch
+        this.<Long>request(
+                PixelBufferVerticle.CAN_READ_EVENT,
+                tileCtxs.get(0), result -> {
+            if (result.failed()) {
+                sendFailure(response, result.cause());
+                return;
+            }
+            if (response.closed()) {
+                return;
+            }
+            // Cached tiles of another version of the pixels are not served
+            long version = result.result().body();
+            response.setChunked(true);
+            response.headers().set("Content-Type", BATCH_CONTENT_TYPE);
+            int[] remaining = new int[] { tileCtxs.size() };
+            int[] next = new int[] { 0 };
+            int[] outstanding = new int[] { 0 };
+            // Tiles are only requested while the client keeps up, so that
+            // a slow client cannot have the whole batch buffered for it
+            Handler<Void> dispatch = new Handler<Void>() {
+                @Override
+                public void handle(Void v) {
+                    while (next[0] < tileCtxs.size()
+                            && outstanding[0] < maxBatchOutstanding
+                            && !response.closed()
+                            && !response.writeQueueFull()) {
+                        final int index = next[0]++;
+                        outstanding[0]++;
+                        TileResponseCache.CachedTile[] cachedTile =
+                                new TileResponseCache.CachedTile[1];
+                        getBatchTile(
+                                tileCtxs.get(index), version, cachedTile,
+                                tile -> {
+                            outstanding[0]--;
+                            writeBatchFrame(
+                                    response, tileCtxs.get(index), index,
+                                    tile, cachedTile[0] == null? null
+                                            : w -> cachedTile[0].release());
+                            if (--remaining[0] == 0) {
+                                if (!response.closed()) {
+                                    response.end();
+                                    log.debug("Response ended");
+                                }
+                                return;
+                            }
+                            handle(null);
+                        });
                     }
-                    if (!response.closed()) {
-                        response.setStatusCode(statusCode).end();
+                    if (next[0] < tileCtxs.size() && outstanding[0] == 0
+                            && !response.closed()) {
+                        // Nothing in flight to resume dispatching
+                        response.drainHandler(this);
                     }
-                    return;
-                }
-                byte[] tile = result.result().body();
-                String contentType = "application/octet-stream";
-                if ("png".equals(tileCtx.format)) {
-                    contentType = "image/png";
                 }
-                if ("tif".equals(tileCtx.format)) {
-                    contentType = "image/tiff";
+            };
+            dispatch.handle(null);
+        });
+    }
+
+    /**
+     * Retrieves a single tile of a batch from the tile caches or the worker
+     * verticles.  The session must already have been confirmed to be able
+     * to read the Image.
+     * @param tileCtx tile to retrieve.
+     * @param version current version of the Image's pixels.
+     * @param cachedTile set to the tile if it is retrieved from the
+     * in-memory cache, in which case it must be released once written.
+     * @param handler handler for the tile.
+     */
+    private void getBatchTile(
+            TileCtx tileCtx, long version,
+            TileResponseCache.CachedTile[] cachedTile,
+            Handler<AsyncResult<Buffer>> handler) {
+        String key = tileCtx.tileKey();
+        String etag = tileCtx.etag(version, encoderFingerprints);
+        if (tileCache != null && tileCache.touch(key)) {
+            cachedTile[0] = tileCache.get(key, etag);
+            if (cachedTile[0] != null) {
+                handler.handle(Future.succeededFuture(cachedTile[0].data));
+                return;
+            }
+        }
+        Handler<AsyncResult<Message<TileResult>>> replyHandler = result -> {
+            if (result.failed()) {
+                handler.handle(Future.failedFuture(result.cause()));
+                return;
+            }
+            Message<TileResult> message = result.result();
+            if (message.body().isStreamed()) {
+                // Frames are not interleaved so streamed tiles, which are
+                // above the streaming threshold, must be requested alone
+                String v = "Tile too large for a batch request";
+                message.fail(413, v);
+                handler.handle(Future.failedFuture(new ReplyException(
+                        ReplyFailure.RECIPIENT_FAILURE, 413, v)));
+                return;
+            }
+            handler.handle(Future.succeededFuture(
+                    Buffer.buffer(message.body().data)));
+        };
+        DiskTileCache.CachedTile cachedFile =
+                diskTileCache == null? null : diskTileCache.get(key, etag);
+        if (cachedFile == null) {
+            requestTile(tileCtx, true, replyHandler);
+            return;
+        }
+        vertx.fileSystem().readFile(cachedFile.path.toString(), result -> {
+            if (result.failed()) {
+                log.warn("Failed to read cached tile {}", cachedFile.path,
+                        result.cause());
+                diskTileCache.remove(key);
+                requestTile(tileCtx, true, replyHandler);
+                return;
+            }
+            handler.handle(Future.succeededFuture(result.result().getBuffer(
+                    (int) cachedFile.offset,
+                    (int) (cachedFile.offset + cachedFile.length))));
+        });
+    }
+
+    /**
+     * Writes a single frame of a batch tile response.
+     * @param response response to write to.
+     * @param tileCtx tile that was requested.
+     * @param index index of the tile in the request.
+     * @param result the tile or the cause of the failure to retrieve it.
+     * @param written handler called once the tile has been written, or
+     * will no longer be, or <code>null</code>.
+     */
+    private void writeBatchFrame(
+            HttpServerResponse response, TileCtx tileCtx, int index,
+            AsyncResult<Buffer> result, Handler<Void> written) {
+        if (response.closed()) {
+            if (written != null) {
+                written.handle(null);
+            }
+            return;
+        }
+        Buffer tile = result.succeeded()? result.result() : null;
+        int statusCode = tile != null? 200 : failureStatus(result.cause());
+        response.write(Buffer.buffer(12)
+                .appendInt(index)
+                .appendInt(statusCode)
+                .appendInt(tile != null? tile.length() : 0));
+        if (tile != null && tile.length() > 0) {
+            if (written == null) {
+                response.write(tile);
+            } else {
+                response.write(tile, v -> written.handle(null));
+            }
+            TileMetrics.sent(tileCtx, tile.length());
+        } else if (written != null) {
+            written.handle(null);
+        }
+    }
+
+    /**
+     * Ends a tile response with the given body, encoding it on a worker
+     * thread first if an encoding was negotiated and the body is large
+     * enough.
+     * @param response response to end.
+     * @param tileCtx tile that was requested.
+     * @param tile response body.
+     * @param filename filename for the <code>Content-Disposition</code>.
+     * @param encoding negotiated content encoding or <code>null</code>.
+     * @param written handler called once the body has been written, or
+     * will no longer be, or <code>null</code>.
+     */
+    private void sendTile(
+            HttpServerResponse response, TileCtx tileCtx, Buffer tile,
+            String filename, ContentEncoder.Encoding encoding,
+            Handler<Void> written) {
+        putTileHeaders(response, tileCtx, filename);
+        if (encoding == null || !contentEncoder.shouldEncode(tile.length())) {
+            endTile(response, tileCtx, tile, written);
+            return;
+        }
+        vertx.<Buffer>executeBlocking(promise -> {
+            try {
+                promise.complete(Buffer.buffer(
+                        contentEncoder.encode(encoding, tile.getByteBuf())));
+            } catch (Exception e) {
+                promise.fail(e);
+            }
+        }, false, result -> {
+            if (result.failed()) {
+                log.error("Failed to encode tile", result.cause());
+                endTile(response, tileCtx, tile, written);
+                return;
+            }
+            Buffer encoded = result.result();
+            if (encoded.length() >= tile.length()) {
+                endTile(response, tileCtx, tile, written);
+                return;
+            }
+            response.headers().set("Content-Encoding", encoding.token);
+            String etag = response.headers().get("ETag");
+            if (etag != null) {
+                // Each encoding is a distinct representation
+                response.headers().set("ETag", encodedEtag(etag, encoding));
+            }
+            if (written != null) {
+                // Only the encoded copy is written
+                written.handle(null);
+            }
+            endTile(response, tileCtx, encoded, null);
+        });
+    }
+
+    /**
+     * Ends a tile response, whose content headers have been set, with the
+     * given body.
+     * @param response response to end.
+     * @param tileCtx tile that was requested.
+     * @param body response body.
+     * @param written handler called once the body has been written to the
+     * socket, or will no longer be, or <code>null</code>.
+     */
+    private void endTile(
+            HttpServerResponse response, TileCtx tileCtx, Buffer body,
+            Handler<Void> written) {
+        response.headers().set(
+                "Content-Length",
+                String.valueOf(body.length()));
+        if (!response.closed()) {
+            long start = System.nanoTime();
+            response.bodyEndHandler(v -> TileMetrics.observe(
+                    TileMetrics.RESPONSE_WRITE, tileCtx, null, start));
+            if (written == null) {
+                response.end(body);
+            } else {
+                // The end handler runs before the body is flushed
+                response.end(body, v -> written.handle(null));
+            }
+            TileMetrics.sent(tileCtx, body.length());
+        } else if (written != null) {
+            written.handle(null);
+        }
+        log.debug("Response ended");
+    }
+
+    /**
+     * Writes one band of a streamed tile to a response and, once the
+     * response's write queue has drained, requests the next band from the
+     * worker verticle.  Ends the response after the last band.
+     * @param response response to write to.
+     * @param tileCtx tile that was requested.
+     * @param message message carrying the band.
+     */
+    private void streamTile(
+            HttpServerResponse response, TileCtx tileCtx,
+            Message<TileResult> message) {
+        TileResult tile = message.body();
+        if (response.closed()) {
+            // Releases the worker's stream
+            message.fail(499, "Response closed");
+            return;
+        }
+        if (!response.headWritten()) {
+            putTileHeaders(response, tileCtx, tile.filename);
+            response.headers().set(
+                    "Content-Length", String.valueOf(tile.length));
+        }
+        response.write(Buffer.buffer(tile.data));
+        TileMetrics.sent(tileCtx, tile.data.readableBytes());
+        if (tile.last) {
+            response.end();
+            log.debug("Response ended");
+            return;
+        }
+        Handler<Void> next = v -> message.<TileResult>replyAndRequest(
+                Boolean.TRUE, result -> {
+            if (result.failed()) {
+                if (failureStatus(result.cause()) == 499) {
+                    log.debug("Tile stream cancelled");
+                } else {
+                    log.error("Tile stream failed", result.cause());
                 }
-                response.headers().set(
-                        "Content-Type", contentType);
-                response.headers().set(
-                        "Content-Length",
-                        String.valueOf(tile.length));
-                response.headers().set(
-                        "Content-Disposition",
-                        String.format(
-                                "attachment; filename=\"%s\"",
-                                result.result().headers().get("filename")));
+                // Headers are already written; truncate the response
                 if (!response.closed()) {
-                    response.end(Buffer.buffer(tile));
+                    response.close();
+                }
+                return;
+            }
+            streamTile(response, tileCtx, result.result());
+        });
+        if (response.writeQueueFull()) {
+            response.drainHandler(next);
+        } else {
+            next.handle(null);
+        }
+    }
+
+    /**
+     * Ends a tile response with a body from the disk cache, sent without
+     * copying it through the JVM heap unless it is to be encoded.  If the
+     * cached file can no longer be read the tile is requested from the
+     * worker verticles instead.
+     * @param response response to end.
+     * @param tileCtx tile that was requested.
+     * @param key tile key.
+     * @param cachedFile location of the cached response body.
+     * @param encoding negotiated content encoding or <code>null</code>.
+     * @param handler handler for a reply from the worker verticles.
+     */
+    private void sendTileFile(
+            HttpServerResponse response, TileCtx tileCtx, String key,
+            DiskTileCache.CachedTile cachedFile,
+            ContentEncoder.Encoding encoding,
+            Handler<AsyncResult<Message<TileResult>>> handler) {
+        if (response.closed()) {
+            return;
+        }
+        if (encoding != null
+                && contentEncoder.shouldEncode((int) cachedFile.length)) {
+            vertx.fileSystem().readFile(
+                    cachedFile.path.toString(), result -> {
+                if (result.failed()) {
+                    log.warn("Failed to read cached tile {}",
+                            cachedFile.path, result.cause());
+                    diskTileCache.remove(key);
+                    requestTile(tileCtx, true, handler);
+                    return;
                 }
-            } finally {
+                sendTile(
+                        response, tileCtx, result.result().getBuffer(
+                                (int) cachedFile.offset,
+                                (int) (cachedFile.offset
+                                    + cachedFile.length)),
+                        cachedFile.filename, encoding, null);
+            });
+            return;
+        }
+        putTileHeaders(response, tileCtx, cachedFile.filename);
+        long start = System.nanoTime();
+        response.sendFile(
+                cachedFile.path.toString(), cachedFile.offset,
+                cachedFile.length, result -> {
+            if (result.succeeded()) {
+                TileMetrics.observe(
+                        TileMetrics.RESPONSE_WRITE, tileCtx, null, start);
+                TileMetrics.sent(tileCtx, cachedFile.length);
                 log.debug("Response ended");
+                return;
+            }
+            log.warn("Failed to send cached tile {}", cachedFile.path,
+                    result.cause());
+            diskTileCache.remove(key);
+            if (!response.headWritten()) {
+                requestTile(tileCtx, true, handler);
+            } else if (!response.closed()) {
+                response.close();
+            }
+        });
+    }
+
+    /**
+     * Sets the content headers, other than length, of a tile response.
+     * @param response response to set headers on.
+     * @param tileCtx tile that was requested.
+     * @param filename filename for the <code>Content-Disposition</code>.
+     */
+    private void putTileHeaders(
+            HttpServerResponse response, TileCtx tileCtx, String filename) {
+        String contentType = "application/octet-stream";
+        if ("png".equals(tileCtx.format)) {
+            contentType = "image/png";
+        }
+        if ("tif".equals(tileCtx.format)) {
+            contentType = "image/tiff";
+        }
+        response.headers().set(
+                "Content-Type", contentType);
+        putCacheHeaders(response, tileCtx);
+        response.headers().set(
+                "Content-Disposition",
+                String.format(
+                        "attachment; filename=\"%s\"", filename));
+    }
+
+    /**
+     * Sets the headers which control caching of a tile response.
+     * @param response response to set headers on.
+     * @param tileCtx tile that was requested.
+     */
+    private void putCacheHeaders(
+            HttpServerResponse response, TileCtx tileCtx) {
+        String value = cacheControl.get(
+                Optional.ofNullable(tileCtx.format).orElse("raw"));
+        if (value != null && !value.isEmpty()) {
+            response.headers().set("Cache-Control", value);
+        }
+        if (contentEncoder != null && tileCtx.format == null) {
+            // Raw tile responses depend on the request's Accept-Encoding
+            response.headers().set("Vary", "Accept-Encoding");
+        }
+    }
+
+    /**
+     * Ends a tile response with 304 Not Modified.
+     * @param response response to end.
+     * @param tileCtx tile that was requested.
+     * @param etag entity tag of the client's copy of the tile.
+     */
+    private void sendNotModified(
+            HttpServerResponse response, TileCtx tileCtx, String etag) {
+        NOT_MODIFIED.inc();
+        putCacheHeaders(response, tileCtx);
+        response.headers().set("ETag", etag);
+        if (!response.closed()) {
+            response.setStatusCode(304).end();
+        }
+        log.debug("Response ended");
+    }
+
+    /**
+     * Finds the entity tag of the current version of a tile, in any of the
+     * representations that could have been sent to the client, in an
+     * <code>If-None-Match</code> header.  Tags are compared weakly, as
+     * required for <code>If-None-Match</code>.
+     * @param ifNoneMatch value of the <code>If-None-Match</code> header.
+     * @param etag entity tag of the unencoded tile.
+     * @param encoding content encoding negotiated for this request or
+     * <code>null</code>.
+     * @return The matching entity tag or <code>null</code> if there is
+     * none.
+     */
+    private String matchEtag(
+            String ifNoneMatch, String etag,
+            ContentEncoder.Encoding encoding) {
+        String encoded = encoding == null? null : encodedEtag(etag, encoding);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*")) {
+                return encoded != null? encoded : etag;
+            }
+            if (candidate.equals(etag) || candidate.equals(encoded)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param etag quoted entity tag of an unencoded tile.
+     * @param encoding content encoding.
+     * @return Entity tag of the tile with the given content encoding at
+     * the configured compression level.
+     */
+    private String encodedEtag(
+            String etag, ContentEncoder.Encoding encoding) {
+        return etag.substring(0, etag.length() - 1)
+                + "-" + contentEncoder.etagSuffix(encoding) + "\"";
+    }
+
+    /**
+     * Requests a tile from the worker verticles, coalescing the request
+     * with an identical one which is already in flight.  A request from a
+     * different session than the in-flight one is only attached to it once
+     * the worker verticles have confirmed that the session may read the
+     * Image.  A request whose client has already gone away is failed
+     * with 499 without being sent.
+     * @param tileCtx tile to request.
+     * @param permitted whether the session has already been confirmed to
+     * be able to read the Image.
+     * @param handler handler for the reply.
+     */
+    private void requestTile(
+            TileCtx tileCtx, boolean permitted,
+            Handler<AsyncResult<Message<TileResult>>> handler) {
+        if (tileCtx.isCancelled()) {
+            handler.handle(Future.failedFuture(new ReplyException(
+                    ReplyFailure.RECIPIENT_FAILURE, 499, "Cancelled")));
+            return;
+        }
+        String key = tileCtx.tileKey();
+        InFlightTile pending = inFlight.get(key);
+        if (pending == null || pending.tileCtx.isCancelled()) {
+            // A cancelled request is left to fail on its own
+            InFlightTile leader = new InFlightTile(tileCtx);
+            inFlight.put(key, leader);
+            this.<TileResult>request(
+                    PixelBufferVerticle.GET_TILE_EVENT,
+                    tileCtx, result -> {
+                inFlight.remove(key, leader);
+                boolean streamed = result.succeeded()
+                        && result.result().body().isStreamed();
+                // Neither cache keeps additional response headers
+                if (result.succeeded() && !streamed
+                        && result.result().body().headers.isEmpty()
+                        && result.result().body().etag != null) {
+                    TileResult tile = result.result().body();
+                    if (tileCache != null) {
+                        tileCache.put(
+                                key, tile.data, tile.filename, tile.etag);
+                    }
+                    if (diskTileCache != null) {
+                        diskTileCache.put(
+                                key, tile.data, tile.filename, tile.etag);
+                    }
+                }
+                handler.handle(result);
+                for (Waiter waiter : leader.waiters) {
+                    if (streamed) {
+                        // A stream can only be consumed once
+                        this.<TileResult>request(
+                                PixelBufferVerticle.GET_TILE_EVENT,
+                                waiter.tileCtx, waiter.handler);
+                    } else if (result.succeeded()
+                            || leader.tileCtx.omeroSessionKey.equals(
+                                waiter.tileCtx.omeroSessionKey)) {
+                        waiter.handler.handle(result);
+                    } else {
+                        // Failure may be specific to the leader's session
+                        requestTile(waiter.tileCtx, true, waiter.handler);
+                    }
+                }
+            });
+            return;
+        }
+        if (permitted
+                || pending.tileCtx.omeroSessionKey.equals(
+                        tileCtx.omeroSessionKey)) {
+            COALESCED.inc();
+            pending.waiters.add(new Waiter(tileCtx, handler));
+            return;
+        }
+        this.<Long>request(
+                PixelBufferVerticle.CAN_READ_EVENT,
+                tileCtx, result -> {
+            if (result.failed()) {
+                handler.handle(Future.failedFuture(result.cause()));
+                return;
             }
+            requestTile(tileCtx, true, handler);
         });
     }
 
+    /**
+     * Cancels a tile request whose client has gone away.  A request
+     * coalesced with others is detached from them and the worker verticles
+     * are only told to stop once no client is waiting for the tile.
+     * @param key tile key, as it was when the tile was requested.
+     * @param tileCtx tile that was requested.
+     */
+    private void abandon(String key, TileCtx tileCtx) {
+        InFlightTile pending = inFlight.get(key);
+        if (pending == null || !pending.abandon(tileCtx)) {
+            // Not yet, or no longer, in flight
+            tileCtx.cancel();
+        }
+    }
+
+    /**
+     * Samples every request carrying a given header, regardless of the
+     * configured sampler, so that individual requests can be traced while
+     * debugging.  Other requests are left to the configured sampler.
+     */
+    private static class ForceSampleHttpSampler extends HttpSampler {
+
+        /** Name of the header which forces sampling */
+        private final String header;
+
+        ForceSampleHttpSampler(String header) {
+            this.header = header;
+        }
+
+        @Override
+        public <Req> Boolean trySample(
+                HttpAdapter<Req, ?> adapter, Req request) {
+            return adapter.requestHeader(request, header) != null?
+                    Boolean.TRUE : null;
+        }
+    }
+
+    /**
+     * Tile request in flight to the worker verticles.
+     */
+    private static class InFlightTile {
+
+        /** Tile context the request was made with */
+        private final TileCtx tileCtx;
+
+        /** Identical requests waiting on this one */
+        private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+        /** Whether the client of the request itself has gone away */
+        private boolean abandoned;
+
+        InFlightTile(TileCtx tileCtx) {
+            this.tileCtx = tileCtx;
+        }
+
+        /**
+         * Detaches a request whose client has gone away, cancelling the
+         * request to the worker verticles once no client is left.
+         * @param tileCtx tile that was requested.
+         * @return <code>true</code> if the request was part of this one.
+         */
+        boolean abandon(TileCtx tileCtx) {
+            if (tileCtx == this.tileCtx) {
+                abandoned = true;
+            } else if (!waiters.removeIf(w -> w.tileCtx == tileCtx)) {
+                return false;
+            } else {
+                tileCtx.cancel();
+            }
+            if (abandoned && waiters.isEmpty()) {
+                this.tileCtx.cancel();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Request attached to an identical in-flight request.
+     */
+    private static class Waiter {
+
+        private final TileCtx tileCtx;
+
+        private final Handler<AsyncResult<Message<TileResult>>> handler;
+
+        Waiter(
+                TileCtx tileCtx,
+                Handler<AsyncResult<Message<TileResult>>> handler) {
+            this.tileCtx = tileCtx;
+            this.handler = handler;
+        }
+    }
+
 }
@@ -19,28 +19,45 @@
 package com.glencoesoftware.omero.ms.pixelbuffer;
 
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
 
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.glencoesoftware.omero.ms.core.OmeroMsAbstractVerticle;
-import com.glencoesoftware.omero.ms.core.OmeroRequest;
-import com.glencoesoftware.omero.zarr.ZarrPixelsService;
 
 import Glacier2.CannotCreateSessionException;
 import Glacier2.PermissionDeniedException;
 import brave.ScopedSpan;
 import brave.Tracing;
-import io.vertx.core.eventbus.DeliveryOptions;
+import io.netty.buffer.ByteBuf;
+import io.prometheus.client.Summary;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
+import ome.io.nio.PixelsService;
+import omeis.providers.re.data.RegionDef;
+import omero.ServerError;
 
 /**
  * OMERO thumbnail provider worker verticle. This verticle is designed to be
  * deployed in worker mode and in either a single or multi threaded mode. It
  * acts as a pool of workers to handle blocking thumbnail rendering events
- * dispatched via the Vert.x EventBus.
+ * dispatched via the Vert.x EventBus.  With <code>execution.mode</code>
+ * set to <code>virtual-threads</code> a single standard instance is
+ * deployed instead, which runs each event on its own virtual thread.
  * @author Chris Allan <callan@glencoesoftware.com>
  *
  */
@@ -52,22 +69,105 @@ public class PixelBufferVerticle extends OmeroMsAbstractVerticle {
     public static final String GET_TILE_EVENT =
             "omero.pixel_buffer.get_tile";
 
+    public static final String CAN_READ_EVENT =
+            "omero.pixel_buffer.can_read";
+
+    /** Format of tiles returned as the stored Zarr chunk */
+    public static final String CHUNK_FORMAT = "chunk";
+
+    /** <code>execution.mode</code> running each request on a virtual thread */
+    public static final String VIRTUAL_THREADS_MODE = "virtual-threads";
+
+    private static final Summary ALLOCATED_BYTES = Summary.build()
+            .name("omero_ms_pixel_buffer_tile_allocated_bytes")
+            .help("Heap allocated by a worker thread to retrieve a tile")
+            .labelNames("format")
+            .register();
+
+    /** Per thread heap allocation counter or <code>null</code> */
+    private static final com.sun.management.ThreadMXBean ALLOCATION_COUNTER =
+            allocationCounter();
+
+    /** <code>Thread.isVirtual()</code> or <code>null</code> before Java 21 */
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
     /** OMERO server pixels service. */
-    private final ZarrPixelsService pixelsService;
+    private final PixelsService pixelsService;
+
+    /** Cache of open pixel buffers shared by all worker instances */
+    private final PixelBufferCache pixelBufferCache;
+
+    /** Cache of Pixels metadata shared by all worker instances */
+    private final PixelsCache pixelsCache;
+
+    /** Joined OMERO sessions shared by all worker instances */
+    private final OmeroSessionPool sessionPool;
+
+    /** Region reader shared by all worker instances */
+    private final RegionReader regionReader;
 
-    /** OMERO server host */
-    private String host;
+    /** Limits on the resources used by concurrent requests */
+    private final ResourceLimits resourceLimits;
 
-    /** OMERO server port */
-    private int port;
+    /**
+     * Executor running each request on its own virtual thread or
+     * <code>null</code> if requests are handled on the worker thread they
+     * are delivered on
+     */
+    private ExecutorService executor;
+
+    /**
+     * Permits for requests running on virtual threads, at most
+     * <code>execution.max-requests</code>
+     */
+    private Semaphore requestPermits;
+
+    /** Requests waiting for a permit to run on a virtual thread */
+    private final Queue<Runnable> pendingRequests =
+            new ConcurrentLinkedQueue<Runnable>();
+
+    /** Raw tile size in bytes above which tiles are streamed */
+    private long streamThreshold;
+
+    /** Approximate size of each band of a streamed tile in bytes */
+    private int streamBandSize;
+
+    /** Encoder for 8 and 16 bit PNG tiles, configured on start */
+    private PngEncoder pngEncoder;
+
+    /** Encoder for TIFF tiles, configured on start */
+    private TiffEncoder tiffEncoder;
+
+    /** Reader of stored Zarr chunks, configured on start */
+    private ZarrChunkReader chunkReader;
+
+    /** Fingerprint of the encoder configuration by format */
+    private Map<String, String> encoderFingerprints;
 
     /**
      * Default constructor.
-     * @param host OMERO server host.
-     * @param port OMERO server port.
+     * @param pixelsService OMERO server pixels service.
+     * @param pixelBufferCache cache of open pixel buffers.
+     * @param pixelsCache cache of Pixels metadata.
+     * @param sessionPool pool of joined OMERO sessions.
+     * @param regionReader reader which splits large regions into
+     * concurrent reads.
+     * @param resourceLimits limits on the resources used by concurrent
+     * requests.
      */
-    public PixelBufferVerticle(ZarrPixelsService pixelsService) {
+    public PixelBufferVerticle(
+            PixelsService pixelsService,
+            PixelBufferCache pixelBufferCache,
+            PixelsCache pixelsCache,
+            OmeroSessionPool sessionPool,
+            RegionReader regionReader,
+            ResourceLimits resourceLimits) {
         this.pixelsService = pixelsService;
+        this.pixelBufferCache = pixelBufferCache;
+        this.pixelsCache = pixelsCache;
+        this.sessionPool = sessionPool;
+        this.regionReader = regionReader;
+        this.resourceLimits = resourceLimits;
     }
 
     /* (non-Javadoc)
@@ -75,58 +175,301 @@ public class PixelBufferVerticle extends OmeroMsAbstractVerticle {
      */
     @Override
     public void start() {
-        JsonObject omero = config().getJsonObject("omero");
-        if (omero == null) {
-            throw new IllegalArgumentException(
-                "'omero' block missing from configuration");
+        JsonObject pngConfig =
+                config().getJsonObject("png", new JsonObject());
+        pngEncoder = new PngEncoder(
+                pngConfig.getInteger(
+                        "compression-level", Deflater.DEFAULT_COMPRESSION),
+                PngEncoder.Filter.valueOf(
+                        pngConfig.getString("filter", "none").toUpperCase()));
+        JsonObject tiffConfig =
+                config().getJsonObject("tiff", new JsonObject());
+        tiffEncoder = new TiffEncoder(
+                TiffEncoder.Compression.valueOf(
+                        tiffConfig.getString("compression", "none")
+                            .toUpperCase()),
+                tiffConfig.getInteger("compression-level"));
+        encoderFingerprints = encoderFingerprints(config());
+        JsonObject streamingConfig =
+                config().getJsonObject("streaming", new JsonObject());
+        streamThreshold =
+                streamingConfig.getLong("threshold", 64L) * 1024 * 1024;
+        streamBandSize =
+                streamingConfig.getInteger("band-size", 4096) * 1024;
+        JsonObject chunkConfig =
+                config().getJsonObject("zarr-chunks", new JsonObject());
+        chunkReader = new ZarrChunkReader(
+                chunkConfig.getInteger("metadata-cache-size", 1024),
+                chunkConfig.getLong("metadata-ttl", 60L) * 1000);
+
+        JsonObject executionConfig =
+                config().getJsonObject("execution", new JsonObject());
+        if (VIRTUAL_THREADS_MODE.equals(executionConfig.getString("mode"))) {
+            executor = newVirtualThreadExecutor();
+            requestPermits = new Semaphore(
+                    executionConfig.getInteger("max-requests", 256));
+        }
+        vertx.eventBus().<TileCtx>consumer(
+                GET_TILE_EVENT, message -> execute(() -> getTile(message)));
+        vertx.eventBus().<TileCtx>consumer(
+                CAN_READ_EVENT, message -> execute(() -> canRead(message)));
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.AbstractVerticle#stop()
+     */
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs a task on its own virtual thread or, if there is no virtual
+     * thread executor, on the current worker thread.  No more than
+     * <code>execution.max-requests</code> tasks run on virtual threads at
+     * once; the rest wait, in order, for one to finish.
+     * @param task task to run.
+     */
+    private void execute(Runnable task) {
+        if (executor == null) {
+            task.run();
+        } else {
+            pendingRequests.add(task);
+            dispatchPending();
+        }
+    }
+
+    /**
+     * Starts waiting tasks on virtual threads while there are permits for
+     * them.  Called whenever a task is queued or finishes, from any thread.
+     * Virtual threads are not reused so the encoders' native state is
+     * freed as each task finishes.
+     */
+    private void dispatchPending() {
+        while (!pendingRequests.isEmpty() && requestPermits.tryAcquire()) {
+            Runnable task = pendingRequests.poll();
+            if (task == null) {
+                // Taken by a concurrent caller
+                requestPermits.release();
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    PngEncoder.releaseThreadState();
+                    TiffEncoder.releaseThreadState();
+                    requestPermits.release();
+                    dispatchPending();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the runtime supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
         }
-        host = omero.getString("host");
-        port = omero.getInteger("port");
+    }
+
+    /**
+     * Fingerprints the configuration of the encoder of each format, so that
+     * entity tags change when the bytes a tile would be encoded to do.
+     * @param config microservice configuration.
+     * @return Fingerprint by format; formats returned as read have none.
+     */
+    public static Map<String, String> encoderFingerprints(JsonObject config) {
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        JsonObject none = new JsonObject();
+        fingerprints.put("png", config.getJsonObject("png", none).encode());
+        fingerprints.put("tif", config.getJsonObject("tiff", none).encode());
+        return fingerprints;
+    }
 
-        vertx.eventBus().<String>consumer(
-                GET_TILE_EVENT, this::getTile);
+    /**
+     * @return <code>true</code> if the current thread is a virtual thread.
+     * Per thread caches are not worth keeping on virtual threads, which
+     * are never reused.
+     */
+    public static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable t) {
+            return false;
+        }
     }
 
-    private void getTile(Message<String> message) {
-        ObjectMapper mapper = new ObjectMapper();
-        TileCtx tileCtx;
+    /**
+     * @return Handle of <code>Thread.isVirtual()</code> or
+     * <code>null</code> if the runtime does not support virtual threads.
+     */
+    private static MethodHandle isVirtualHandle() {
         try {
-            tileCtx = mapper.readValue(message.body(), TileCtx.class);
+            return MethodHandles.publicLookup().findVirtual(
+                    Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates an executor which runs each task on a new virtual thread.
+     * Looked up reflectively so that the rest of the service still runs on
+     * Java 11.
+     * @return See above or <code>null</code> if the runtime does not
+     * support virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.debug("Virtual threads unavailable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a handler for a single tile request.
+     * @param tileCtx tile to handle.
+     * @return See above.
+     */
+    private TileRequestHandler createTileRequestHandler(TileCtx tileCtx) {
+        return new TileRequestHandler(
+                pixelsService, pixelBufferCache, pixelsCache, regionReader,
+                pngEncoder, tiffEncoder, chunkReader, resourceLimits,
+                tileCtx);
+    }
+
+    /**
+     * Permission check event handler.  Replies with the version of the
+     * Image's pixels, as returned by
+     * {@link TileRequestHandler#getPixelsVersion(omero.client)}, if the
+     * session in the {@link TileCtx} may read its Image or fails with 404
+     * if the Image does not exist or the session may not read it.
+     * @param message message carrying a {@link TileCtx}.
+     */
+    private void canRead(Message<TileCtx> message) {
+        TileCtx tileCtx = message.body();
+        observeQueueWait(tileCtx);
+        if (dropCancelled(message, tileCtx)) {
+            return;
+        }
+        ScopedSpan span = Tracing.currentTracer().startScopedSpanWithParent(
+                "handle_can_read",
+                extractor().extract(tileCtx.traceContext).context());
+        tagSpan(span, tileCtx);
+        try (OmeroSessionPool.Lease session = acquireSession(tileCtx))
+        {
+            Long version = createTileRequestHandler(tileCtx)
+                .getPixelsVersion(session.getClient());
+            span.finish();
+            if (version != null) {
+                message.reply(version);
+            } else {
+                message.fail(
+                        404, "Cannot find Image:" + tileCtx.imageId);
+            }
+        } catch (PermissionDeniedException
+                | CannotCreateSessionException e) {
+            String v = "Permission denied";
+            log.debug(v);
+            span.error(e);
+            span.finish();
+            message.fail(403, v);
         } catch (Exception e) {
-            String v = "Illegal tile context";
-            log.error(v + ": {}", message.body(), e);
-            message.fail(400, v);
+            String v = "Exception while checking permissions";
+            log.error(v, e);
+            span.error(e);
+            span.finish();
+            message.fail(500, v);
+        }
+    }
+
+    private void getTile(Message<TileCtx> message) {
+        TileCtx tileCtx = message.body();
+        observeQueueWait(tileCtx);
+        if (dropCancelled(message, tileCtx)) {
             return;
         }
         ScopedSpan span = Tracing.currentTracer().startScopedSpanWithParent(
                 "handle_get_tile",
                 extractor().extract(tileCtx.traceContext).context());
-        span.tag("ctx", message.body());
+        tagSpan(span, tileCtx);
 
-        try (OmeroRequest request = new OmeroRequest(
-                 host, port, tileCtx.omeroSessionKey))
-        {
-            byte[] tile = request.execute(
-                    new TileRequestHandler(pixelsService, tileCtx)::getTile);
+        OmeroSessionPool.Lease session = null;
+        try {
+            session = acquireSession(tileCtx);
+            TileRequestHandler handler = createTileRequestHandler(tileCtx);
+            Long version = handler.getPixelsVersion(session.getClient());
+            if (version == null) {
+                message.fail(
+                        404, "Cannot find Image:" + tileCtx.imageId);
+                return;
+            }
+            String etag = tileCtx.etag(version, encoderFingerprints);
+            if (CHUNK_FORMAT.equals(tileCtx.format)) {
+                ZarrChunkReader.Chunk chunk =
+                        handler.getChunk(session.getClient());
+                if (chunk != null) {
+                    message.reply(new TileResult(
+                            chunk.data,
+                            filename(tileCtx, handler.getRegion()), etag,
+                            chunk.headers));
+                    return;
+                }
+                // Not stored as readable NGFF; the raw tile is returned
+            }
+            Long size = handler.getTileSize(session.getClient());
+            if (size != null && size > streamThreshold) {
+                if (!handler.isStreamable(size)) {
+                    if (size > TileRequestHandler.MAX_TILE_SIZE) {
+                        throw new IllegalArgumentException(
+                                "Region too large for format: "
+                                + tileCtx.format);
+                    }
+                } else {
+                    TileStream stream = handler.getTileStream(
+                            session.getClient(), streamBandSize);
+                    if (stream != null) {
+                        // The stream and session are released once the
+                        // last band has been sent
+                        sendBand(
+                                message, stream, session,
+                                filename(tileCtx, handler.getRegion()),
+                                etag);
+                        session = null;
+                        return;
+                    }
+                }
+            }
+            long allocated = allocatedBytes();
+            ByteBuf tile = size == null? null
+                    : handler.getTile(session.getClient());
+            if (allocated >= 0) {
+                ALLOCATED_BYTES
+                    .labels(Optional.ofNullable(tileCtx.format).orElse("raw"))
+                    .observe(allocatedBytes() - allocated);
+            }
             if (tile == null) {
-                span.finish();
                 message.fail(
                         404, "Cannot find Image:" + tileCtx.imageId);
             } else {
-                DeliveryOptions deliveryOptions = new DeliveryOptions();
-                deliveryOptions.addHeader(
-                    "filename", String.format(
-                        "image%d_z%d_c%d_t%d_x%d_y%d_w%d_h%d.%s",
-                        tileCtx.imageId, tileCtx.z, tileCtx.c, tileCtx.t,
-                        tileCtx.region.getX(),
-                        tileCtx.region.getY(),
-                        tileCtx.region.getWidth(),
-                        tileCtx.region.getHeight(),
-                        Optional.ofNullable(tileCtx.format).orElse("bin")
-                    )
-                );
-                span.finish();
-                message.reply(tile, deliveryOptions);
+                message.reply(new TileResult(
+                        tile, filename(tileCtx, handler.getRegion()), etag));
             }
         } catch (PermissionDeniedException
                 | CannotCreateSessionException e) {
@@ -134,6 +477,10 @@ public class PixelBufferVerticle extends OmeroMsAbstractVerticle {
             log.debug(v);
             span.error(e);
             message.fail(403, v);
+        } catch (CancellationException e) {
+            log.debug("Tile request cancelled");
+            span.tag("cancelled", "true");
+            message.fail(499, "Cancelled");
         } catch (IllegalArgumentException e) {
             log.debug("Illegal argument received while retrieving tile", e);
             span.error(e);
@@ -143,7 +490,187 @@ public class PixelBufferVerticle extends OmeroMsAbstractVerticle {
             log.error(v, e);
             span.error(e);
             message.fail(500, v);
+        } finally {
+            // Every outcome, including cancellation, ends the span
+            span.finish();
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Tags a span with the parameters of a tile request.  Nothing is
+     * formatted unless the span is sampled.
+     * @param span span to tag.
+     * @param tileCtx tile that was requested.
+     */
+    private static void tagSpan(ScopedSpan span, TileCtx tileCtx) {
+        if (span.isNoop()) {
+            return;
+        }
+        span.tag("image_id", String.valueOf(tileCtx.imageId));
+        span.tag("z", String.valueOf(tileCtx.z));
+        span.tag("c", String.valueOf(tileCtx.c));
+        span.tag("t", String.valueOf(tileCtx.t));
+        if (tileCtx.resolution != null) {
+            span.tag("resolution", String.valueOf(tileCtx.resolution));
+        }
+        span.tag("region", String.format(
+                "%d,%d,%d,%d", tileCtx.region.getX(), tileCtx.region.getY(),
+                tileCtx.region.getWidth(), tileCtx.region.getHeight()));
+        span.tag("format", Optional.ofNullable(tileCtx.format).orElse("raw"));
+    }
+
+    /**
+     * Fails a request which was cancelled while it waited on the event bus
+     * without doing any work for it.
+     * @param message message carrying the request.
+     * @param tileCtx tile context received.
+     * @return <code>true</code> if the request was dropped.
+     */
+    private static boolean dropCancelled(Message<?> message, TileCtx tileCtx) {
+        if (!tileCtx.isCancelled()) {
+            return false;
+        }
+        TileMetrics.cancelled(TileMetrics.QUEUE_WAIT, tileCtx);
+        message.fail(499, "Cancelled");
+        return true;
+    }
+
+    /**
+     * Records the time a tile context waited on the event bus for this
+     * worker.
+     * @param tileCtx tile context received.
+     */
+    private static void observeQueueWait(TileCtx tileCtx) {
+        if (tileCtx.sent > 0) {
+            TileMetrics.observe(
+                    TileMetrics.QUEUE_WAIT, tileCtx, null, tileCtx.sent);
+        }
+    }
+
+    /**
+     * Acquires a joined OMERO session for a tile request.
+     * @param tileCtx tile context carrying the OMERO session key.
+     * @return Lease on the session which must be closed after use.
+     */
+    private OmeroSessionPool.Lease acquireSession(TileCtx tileCtx)
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        long start = System.nanoTime();
+        OmeroSessionPool.Lease session;
+        try (ResourceLimits.Permit permit = resourceLimits.acquire(
+                ResourceLimits.Resource.DATABASE)) {
+            session = sessionPool.acquire(tileCtx.omeroSessionKey);
+        }
+        TileMetrics.observe(TileMetrics.SESSION_JOIN, tileCtx, null, start);
+        return session;
+    }
+
+    /**
+     * Reads the next band of a streamed tile and replies with it.  Unless
+     * it is the last band the recipient requests the one after by replying;
+     * if it fails the message instead, or does not reply in time, the
+     * stream is abandoned.
+     * @param message message to reply to.
+     * @param stream stream to read from.
+     * @param session lease on the session the stream was opened with.
+     * @param filename filename for the tile response.
+     * @param etag entity tag of the tile response.
+     */
+    private void sendBand(
+            Message<?> message, TileStream stream,
+            OmeroSessionPool.Lease session, String filename, String etag) {
+        ByteBuf band;
+        try {
+            band = stream.next();
+        } catch (CancellationException e) {
+            log.debug("Tile stream cancelled");
+            stream.close();
+            session.close();
+            message.fail(499, "Cancelled");
+            return;
+        } catch (Exception e) {
+            String v = "Exception while streaming tile";
+            log.error(v, e);
+            stream.close();
+            session.close();
+            message.fail(500, v);
+            return;
+        }
+        if (!stream.hasNext()) {
+            stream.close();
+            session.close();
+            message.reply(
+                    new TileResult(
+                            band, filename, etag, stream.length(), true));
+            return;
+        }
+        message.<Boolean>replyAndRequest(
+                new TileResult(
+                        band, filename, etag, stream.length(), false),
+                result -> {
+            if (result.failed()) {
+                log.debug("Tile stream abandoned", result.cause());
+                stream.close();
+                session.close();
+                return;
+            }
+            // Delivered on the event loop in virtual thread mode
+            execute(() -> sendBand(
+                    result.result(), stream, session, filename, etag));
+        });
+    }
+
+    /**
+     * @param tileCtx tile that was requested.
+     * @param region region of the tile, with its size filled in.
+     * @return Filename for the tile response.
+     */
+    private static String filename(TileCtx tileCtx, RegionDef region) {
+        return String.format(
+                "image%d_z%d_c%d_t%d_x%d_y%d_w%d_h%d.%s",
+                tileCtx.imageId, tileCtx.z, tileCtx.c, tileCtx.t,
+                region.getX(),
+                region.getY(),
+                region.getWidth(),
+                region.getHeight(),
+                Optional.ofNullable(tileCtx.format).orElse("bin")
+            );
+    }
+
+    /**
+     * @return The JVM's per thread heap allocation counter or
+     * <code>null</code> if it does not provide one.
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean counter =
+                        (com.sun.management.ThreadMXBean) bean;
+                if (counter.isThreadAllocatedMemorySupported()
+                        && counter.isThreadAllocatedMemoryEnabled()) {
+                    return counter;
+                }
+            }
+        } catch (LinkageError e) {
+            log.debug("Thread allocation counter unavailable", e);
+        }
+        return null;
+    }
+
+    /**
+     * @return Total bytes allocated on the heap by the current thread or
+     * <code>-1</code> if that is not known.
+     */
+    private static long allocatedBytes() {
+        if (ALLOCATION_COUNTER == null) {
+            return -1;
         }
+        return ALLOCATION_COUNTER.getThreadAllocatedBytes(
+                Thread.currentThread().getId());
     }
 
 }
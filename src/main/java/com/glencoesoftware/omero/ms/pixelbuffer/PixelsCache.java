@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.concurrent.Callable;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import ome.model.core.Pixels;
+
+/**
+ * Cache of {@link Pixels} metadata keyed by {@link ome.model.core.Image}
+ * identifier, shared by all {@link PixelBufferVerticle} instances.
+ * <p>
+ * What an image is (its mapped {@link Pixels}, dimensions and pixel type)
+ * is the same for every user and is cached once per image.  Who may see
+ * it is cached separately, per OMERO session, for a shorter time; a
+ * session which has not recently been granted access is always checked
+ * against the server before cached metadata is returned to it.
+ */
+public class PixelsCache {
+
+    private static final Counter HITS = Counter.build()
+            .name("omero_ms_pixel_buffer_pixels_cache_hits_total")
+            .help("Pixels metadata cache hits")
+            .labelNames("cache")
+            .register();
+
+    private static final Counter MISSES = Counter.build()
+            .name("omero_ms_pixel_buffer_pixels_cache_misses_total")
+            .help("Pixels metadata cache misses")
+            .labelNames("cache")
+            .register();
+
+    private static final Gauge SIZE = Gauge.build()
+            .name("omero_ms_pixel_buffer_pixels_cache_size")
+            .help("Number of entries in the Pixels metadata cache")
+            .labelNames("cache")
+            .register();
+
+    /** Mapped {@link Pixels} by Image identifier */
+    private final ExpiringCache<Long, Pixels> pixels;
+
+    /** Image identifiers each OMERO session has recently been allowed */
+    private final ExpiringCache<String, Boolean> permissions;
+
+    /** Number of resolution levels by Image identifier, once opened */
+    private final ExpiringCache<Long, Integer> resolutionLevels;
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum number of images and, separately, of session
+     * and image pairs to cache; a value less than one disables caching.
+     * @param ttl time after which cached metadata expires in milliseconds.
+     * @param permissionTtl time after which a cached permission check
+     * expires in milliseconds.
+     */
+    public PixelsCache(int maxSize, long ttl, long permissionTtl) {
+        pixels = new ExpiringCache<Long, Pixels>(maxSize, ttl);
+        permissions = new ExpiringCache<String, Boolean>(
+                maxSize, permissionTtl);
+        resolutionLevels = new ExpiringCache<Long, Integer>(maxSize, ttl);
+    }
+
+    /**
+     * Retrieves the {@link Pixels} for an Image on behalf of an OMERO
+     * session.
+     * @param omeroSessionKey OMERO session key the request is made with.
+     * @param imageId Image identifier.
+     * @param loader queries the server, with the session's permissions, for
+     * the {@link Pixels}; returns <code>null</code> if the Image does not
+     * exist or the session may not read it.
+     * @param permissionCheck queries the server for whether the session may
+     * read the Image.
+     * @return See above.
+     * @throws Exception If there was an error querying the server.
+     */
+    public Pixels get(
+            String omeroSessionKey, Long imageId,
+            Callable<Pixels> loader, Callable<Boolean> permissionCheck)
+                    throws Exception {
+        String permissionKey = omeroSessionKey + "/" + imageId;
+        Pixels cached = pixels.get(imageId);
+        if (cached == null) {
+            MISSES.labels("pixels").inc();
+            cached = loader.call();
+            if (cached != null) {
+                pixels.put(imageId, cached);
+                permissions.put(permissionKey, Boolean.TRUE);
+            }
+            return cached;
+        }
+        HITS.labels("pixels").inc();
+        if (permissions.get(permissionKey) != null) {
+            HITS.labels("permissions").inc();
+            return cached;
+        }
+        MISSES.labels("permissions").inc();
+        if (!Boolean.TRUE.equals(permissionCheck.call())) {
+            return null;
+        }
+        permissions.put(permissionKey, Boolean.TRUE);
+        return cached;
+    }
+
+    /**
+     * Retrieves the cached {@link Pixels} for an Image without checking
+     * whether any session may read it.  Only for estimates, such as the
+     * cost of a request, which are never returned to a client.
+     * @param imageId Image identifier.
+     * @return See above or <code>null</code> if it is not cached.
+     */
+    public Pixels peek(Long imageId) {
+        return pixels.get(imageId);
+    }
+
+    /**
+     * Records the number of resolution levels of an Image, as found when
+     * its pixel buffer was opened.
+     * @param imageId Image identifier.
+     * @param levels number of resolution levels.
+     */
+    public void putResolutionLevels(Long imageId, int levels) {
+        resolutionLevels.put(imageId, levels);
+    }
+
+    /**
+     * Retrieves the number of resolution levels of an Image without
+     * checking whether any session may read it.  Only for estimates, as
+     * with {@link #peek(Long)}.
+     * @param imageId Image identifier.
+     * @return See above or <code>null</code> if it is not known.
+     */
+    public Integer peekResolutionLevels(Long imageId) {
+        return resolutionLevels.get(imageId);
+    }
+
+    /**
+     * Removes all expired entries.
+     */
+    public void evictExpired() {
+        pixels.evictExpired();
+        permissions.evictExpired();
+        resolutionLevels.evictExpired();
+        SIZE.labels("pixels").set(pixels.size());
+        SIZE.labels("permissions").set(permissions.size());
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Encodes single channel 8 and 16 bit tiles as grayscale PNG directly from
+ * the big-endian buffer filled by
+ * {@link ome.io.nio.PixelBuffer#getTileDirect}.  Rows are filtered and
+ * compressed one at a time into a single <code>IDAT</code> chunk; the
+ * {@link Deflater} and row buffers are reused per thread.
+ * <p>
+ * Signed pixel types are written as is, as Bio-Formats does.  Instances
+ * are immutable and may be shared between threads.
+ */
+public class PngEncoder {
+
+    private static final byte[] SIGNATURE = new byte[] {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final byte[] IHDR =
+            "IHDR".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] IDAT =
+            "IDAT".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] IEND =
+            "IEND".getBytes(StandardCharsets.US_ASCII);
+
+    /** Smallest amount of space offered to the deflater at once */
+    private static final int MIN_WRITABLE = 8192;
+
+    /** PNG row filter strategies */
+    public enum Filter {
+        /** Rows are not filtered */
+        NONE,
+        /** Difference from the pixel to the left */
+        SUB,
+        /** Difference from the pixel above */
+        UP,
+        /** Difference from the mean of the pixels to the left and above */
+        AVERAGE,
+        /** Difference from the Paeth predictor */
+        PAETH,
+        /**
+         * Per row, whichever of the above has the smallest sum of absolute
+         * differences
+         */
+        ADAPTIVE
+    }
+
+    /** Deflater, checksum and row buffers of the current thread */
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>();
+
+    /** Deflate compression level */
+    private final int compressionLevel;
+
+    /** Row filter strategy */
+    private final Filter filter;
+
+    /**
+     * Default constructor.
+     * @param compressionLevel deflate compression level from
+     * {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}
+     * or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param filter row filter strategy.
+     */
+    public PngEncoder(int compressionLevel, Filter filter) {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && (compressionLevel < Deflater.NO_COMPRESSION
+                    || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException(
+                    "Invalid PNG compression level: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+    }
+
+    /**
+     * @param pixelsType OMERO pixels type, for example <code>uint16</code>.
+     * @return <code>true</code> if tiles of the given type can be encoded.
+     */
+    public boolean supports(String pixelsType) {
+        switch (pixelsType) {
+            case "int8":
+            case "uint8":
+            case "int16":
+            case "uint16":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Encodes a tile.
+     * @param tile big-endian pixel data, row by row.
+     * @param width tile width in pixels.
+     * @param height tile height in pixels.
+     * @param bytesPerPixel either 1 or 2.
+     * @return The PNG file.
+     */
+    public ByteBuf encode(
+            byte[] tile, int width, int height, int bytesPerPixel) {
+        return encode(tile, width, height, bytesPerPixel, null);
+    }
+
+    /**
+     * Encodes a tile, giving up between rows once <code>cancelled</code>
+     * is true.
+     * @param tile big-endian pixel data, row by row.
+     * @param width tile width in pixels.
+     * @param height tile height in pixels.
+     * @param bytesPerPixel either 1 or 2.
+     * @param cancelled whether the tile is still wanted or
+     * <code>null</code> if encoding cannot be cancelled.
+     * @return The PNG file.
+     * @throws CancellationException If encoding was cancelled.
+     */
+    public ByteBuf encode(
+            byte[] tile, int width, int height, int bytesPerPixel,
+            BooleanSupplier cancelled) {
+        int rowBytes = width * bytesPerPixel;
+        State state = STATE.get();
+        if (state == null) {
+            state = new State();
+            STATE.set(state);
+        }
+        state.ensureCapacity(rowBytes + 1);
+        Deflater deflater = state.deflater;
+        deflater.reset();
+        deflater.setLevel(compressionLevel);
+
+        // Sized so that even incompressible tiles do not have to grow
+        long rawSize = (long) (rowBytes + 1) * height;
+        ByteBuf out = Unpooled.buffer(
+                (int) Math.min(Integer.MAX_VALUE - 8,
+                        rawSize + rawSize / 1000 + 1024));
+        out.writeBytes(SIGNATURE);
+
+        int start = beginChunk(out, IHDR);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeByte(bytesPerPixel * 8);  // Bit depth
+        out.writeByte(0);  // Color type: grayscale
+        out.writeByte(0);  // Compression method: deflate
+        out.writeByte(0);  // Filter method: adaptive filtering
+        out.writeByte(0);  // Interlace method: none
+        endChunk(out, start, state.crc);
+
+        start = beginChunk(out, IDAT);
+        for (int y = 0; y < height; y++) {
+            if (cancelled != null && cancelled.getAsBoolean()) {
+                throw new CancellationException("PNG encoding cancelled");
+            }
+            byte[] row = filterRow(
+                    state, tile, y * rowBytes, rowBytes, bytesPerPixel,
+                    y > 0);
+            deflater.setInput(row, 0, rowBytes + 1);
+            while (!deflater.needsInput()) {
+                deflate(deflater, out);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(deflater, out);
+        }
+        endChunk(out, start, state.crc);
+
+        start = beginChunk(out, IEND);
+        endChunk(out, start, state.crc);
+        return out;
+    }
+
+    /**
+     * Frees the current thread's {@link Deflater}, if it has one.  Threads
+     * which are not reused, such as virtual threads, must call this once
+     * they have finished encoding.
+     */
+    public static void releaseThreadState() {
+        State state = STATE.get();
+        if (state != null) {
+            STATE.remove();
+            state.deflater.end();
+        }
+    }
+
+    /**
+     * Filters one row.
+     * @return Buffer holding the filter type followed by the filtered row.
+     */
+    private byte[] filterRow(
+            State state, byte[] tile, int offset, int rowBytes, int bpp,
+            boolean hasPrevious) {
+        if (filter != Filter.ADAPTIVE) {
+            byte[] row = state.rows[0];
+            filter(filter, tile, offset, rowBytes, bpp, hasPrevious, row);
+            return row;
+        }
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+        Filter[] candidates = Filter.values();
+        for (int i = 0; i < state.rows.length; i++) {
+            byte[] row = state.rows[i];
+            filter(candidates[i], tile, offset, rowBytes, bpp, hasPrevious,
+                   row);
+            // Sum of the filtered bytes read as signed values
+            long sum = 0;
+            for (int x = 1; x <= rowBytes && sum < bestSum; x++) {
+                sum += Math.abs((int) row[x]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = row;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Applies a single filter to one row, writing the filter type followed
+     * by the filtered row to <code>row</code>.
+     */
+    private static void filter(
+            Filter filter, byte[] tile, int offset, int rowBytes, int bpp,
+            boolean hasPrevious, byte[] row) {
+        row[0] = (byte) filter.ordinal();
+        int previous = offset - rowBytes;
+        switch (filter) {
+            case NONE:
+                System.arraycopy(tile, offset, row, 1, rowBytes);
+                break;
+            case SUB:
+                for (int x = 0; x < rowBytes; x++) {
+                    int a = x < bpp? 0 : tile[offset + x - bpp] & 0xff;
+                    row[x + 1] = (byte) (tile[offset + x] - a);
+                }
+                break;
+            case UP:
+                for (int x = 0; x < rowBytes; x++) {
+                    int b = hasPrevious? tile[previous + x] & 0xff : 0;
+                    row[x + 1] = (byte) (tile[offset + x] - b);
+                }
+                break;
+            case AVERAGE:
+                for (int x = 0; x < rowBytes; x++) {
+                    int a = x < bpp? 0 : tile[offset + x - bpp] & 0xff;
+                    int b = hasPrevious? tile[previous + x] & 0xff : 0;
+                    row[x + 1] = (byte) (tile[offset + x] - ((a + b) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int x = 0; x < rowBytes; x++) {
+                    int a = x < bpp? 0 : tile[offset + x - bpp] & 0xff;
+                    int b = hasPrevious? tile[previous + x] & 0xff : 0;
+                    int c = x < bpp || !hasPrevious?
+                            0 : tile[previous + x - bpp] & 0xff;
+                    row[x + 1] = (byte) (tile[offset + x] - paeth(a, b, c));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Not a single filter: " + filter);
+        }
+    }
+
+    /**
+     * @return Whichever of the left, above or upper left byte is closest to
+     * <code>a + b - c</code>.
+     */
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc? b : c;
+    }
+
+    /**
+     * Compresses as much pending input as fits into <code>out</code>.
+     */
+    private static void deflate(Deflater deflater, ByteBuf out) {
+        out.ensureWritable(MIN_WRITABLE);
+        int written = deflater.deflate(
+                out.array(), out.arrayOffset() + out.writerIndex(),
+                out.writableBytes());
+        out.writerIndex(out.writerIndex() + written);
+    }
+
+    /**
+     * Writes a placeholder length and the chunk type.
+     * @return Index of the chunk length.
+     */
+    private static int beginChunk(ByteBuf out, byte[] type) {
+        int start = out.writerIndex();
+        out.writeInt(0);
+        out.writeBytes(type);
+        return start;
+    }
+
+    /**
+     * Fills in the length of the chunk started at <code>start</code> and
+     * appends its CRC.
+     */
+    private static void endChunk(ByteBuf out, int start, CRC32 crc) {
+        int length = out.writerIndex() - start - 8;
+        out.setInt(start, length);
+        crc.reset();
+        crc.update(out.array(), out.arrayOffset() + start + 4, length + 4);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Per thread encoder state.
+     */
+    private static class State {
+
+        private final Deflater deflater = new Deflater();
+
+        private final CRC32 crc = new CRC32();
+
+        /** One filtered row buffer per single filter */
+        private final byte[][] rows = new byte[Filter.ADAPTIVE.ordinal()][];
+
+        private void ensureCapacity(int size) {
+            if (rows[0] == null || rows[0].length < size) {
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = new byte[size];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.LoggerFactory;
+
+import com.glencoesoftware.omero.zarr.ZarrPixelBuffer;
+
+import io.prometheus.client.Counter;
+import ome.io.nio.PixelBuffer;
+
+/**
+ * Reads regions of a pixel buffer, splitting large ones along the buffer's
+ * chunk grid and reading the pieces concurrently on a dedicated
+ * {@link ForkJoinPool} shared by all {@link PixelBufferVerticle} instances.
+ * Each piece covers whole chunks so no chunk is decompressed twice.  Only
+ * reads from a {@link ZarrPixelBuffer} are split; ROMIO and Bio-Formats
+ * pixel buffers are not thread safe.
+ */
+public class RegionReader {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(RegionReader.class);
+
+    private static final Counter SPLIT_READS = Counter.build()
+            .name("omero_ms_pixel_buffer_split_reads_total")
+            .help("Region reads split into concurrently read pieces")
+            .register();
+
+    private static final Counter PIECES = Counter.build()
+            .name("omero_ms_pixel_buffer_split_read_pieces_total")
+            .help("Pieces read concurrently by split region reads")
+            .register();
+
+    /**
+     * Raw region size in bytes above which cancellable reads that are not
+     * split are read a row of chunks at a time; smaller regions are read
+     * directly, without the copy out of a piece buffer
+     */
+    private static final long MIN_BANDED_READ_SIZE = 4 * 1024 * 1024;
+
+    /** Largest piece buffer retained by a thread for reuse */
+    private static final int MAX_PIECE_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Per thread buffer that pieces are read into before being copied.  Not
+     * kept by virtual threads.
+     */
+    private static final ThreadLocal<byte[]> PIECE_BUFFER =
+            new ThreadLocal<byte[]>();
+
+    /** Pool pieces are read on or <code>null</code> if splitting is off */
+    private final ForkJoinPool pool;
+
+    /** Raw region size in bytes above which reads are split */
+    private final long threshold;
+
+    /** Number of pieces a region is split into at most */
+    private final int maxPieces;
+
+    /**
+     * Default constructor.
+     * @param parallelism number of threads reading pieces.
+     * @param threshold raw region size in bytes above which reads are
+     * split; a value less than one disables splitting.
+     */
+    public RegionReader(int parallelism, long threshold) {
+        this.threshold = threshold;
+        // A few pieces per thread keeps them balanced without making them
+        // so small that the per read overhead dominates
+        this.maxPieces = parallelism * 2;
+        if (threshold > 0) {
+            log.info("Split region reads enabled: {} threads, {} bytes",
+                    parallelism, threshold);
+            pool = new ForkJoinPool(parallelism);
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Reads a region into a buffer, as
+     * {@link PixelBuffer#getTileDirect(Integer, Integer, Integer, Integer,
+     * Integer, Integer, Integer, byte[])} does.
+     * @param pixelBuffer pixel buffer to read from.
+     * @param z Z section.
+     * @param c channel.
+     * @param t timepoint.
+     * @param x X offset of the region.
+     * @param y Y offset of the region.
+     * @param w width of the region.
+     * @param h height of the region.
+     * @param bytesPerPixel bytes per pixel.
+     * @param buffer buffer to read into.
+     * @throws IOException If there was an error reading.
+     */
+    public void read(
+            PixelBuffer pixelBuffer, int z, int c, int t,
+            int x, int y, int w, int h, int bytesPerPixel, byte[] buffer)
+                    throws IOException {
+        read(pixelBuffer, z, c, t, x, y, w, h, bytesPerPixel, buffer, null);
+    }
+
+    /**
+     * Reads a region into a buffer, as
+     * {@link #read(PixelBuffer, int, int, int, int, int, int, int, int,
+     * byte[])} does, but gives up between rows of chunks, or between
+     * pieces if the read is split, once <code>cancelled</code> is true.
+     * Regions within a single row of chunks, or small enough to read
+     * quickly, are read in one go after checking once.
+     * @param pixelBuffer pixel buffer to read from.
+     * @param z Z section.
+     * @param c channel.
+     * @param t timepoint.
+     * @param x X offset of the region.
+     * @param y Y offset of the region.
+     * @param w width of the region.
+     * @param h height of the region.
+     * @param bytesPerPixel bytes per pixel.
+     * @param buffer buffer to read into.
+     * @param cancelled whether the read is still wanted or
+     * <code>null</code> if it cannot be cancelled.
+     * @throws IOException If there was an error reading.
+     * @throws CancellationException If the read was cancelled; the
+     * contents of the buffer are then undefined.
+     */
+    public void read(
+            PixelBuffer pixelBuffer, int z, int c, int t,
+            int x, int y, int w, int h, int bytesPerPixel, byte[] buffer,
+            BooleanSupplier cancelled) throws IOException {
+        long size = (long) w * h * bytesPerPixel;
+        boolean split = pool != null
+                && pixelBuffer instanceof ZarrPixelBuffer
+                && size > threshold;
+        boolean banded = !split && cancelled != null
+                && size > MIN_BANDED_READ_SIZE;
+        Dimension chunk = split || banded? pixelBuffer.getTileSize() : null;
+        if (chunk == null || chunk.width < 1 || chunk.height < 1
+                || (w <= chunk.width && h <= chunk.height)
+                || (!split && (y + h - 1) / chunk.height == y / chunk.height)) {
+            checkCancelled(cancelled);
+            pixelBuffer.getTileDirect(z, c, t, x, y, w, h, buffer);
+            return;
+        }
+        if (!split) {
+            // Whole rows of chunks; each is decompressed exactly once
+            int stride = w * bytesPerPixel;
+            for (int by = y; by < y + h;
+                    by = (by / chunk.height + 1) * chunk.height) {
+                checkCancelled(cancelled);
+                int bh = Math.min((by / chunk.height + 1) * chunk.height,
+                        y + h) - by;
+                readPiece(
+                    pixelBuffer, z, c, t, x, by, w, bh, bytesPerPixel,
+                    buffer, (by - y) * stride, stride);
+            }
+            return;
+        }
+
+        // Group chunks into pieces until there are few enough
+        int columns = (x + w - 1) / chunk.width - x / chunk.width + 1;
+        int rows = (y + h - 1) / chunk.height - y / chunk.height + 1;
+        int groupX = 1;
+        int groupY = 1;
+        while (ceilDiv(columns, groupX) * ceilDiv(rows, groupY) > maxPieces) {
+            if (ceilDiv(columns, groupX) >= ceilDiv(rows, groupY)) {
+                groupX *= 2;
+            } else {
+                groupY *= 2;
+            }
+        }
+        int stepX = chunk.width * groupX;
+        int stepY = chunk.height * groupY;
+
+        List<ForkJoinTask<Void>> pieces = new ArrayList<ForkJoinTask<Void>>();
+        // Set once the read has failed so that pieces not yet started are
+        // skipped
+        AtomicBoolean abandoned = new AtomicBoolean();
+        for (int py = y; py < y + h; py = (py / stepY + 1) * stepY) {
+            int ph = Math.min((py / stepY + 1) * stepY, y + h) - py;
+            for (int px = x; px < x + w; px = (px / stepX + 1) * stepX) {
+                int pw = Math.min((px / stepX + 1) * stepX, x + w) - px;
+                int offset = ((py - y) * w + (px - x)) * bytesPerPixel;
+                int pieceX = px;
+                int pieceY = py;
+                pieces.add(pool.submit(() -> {
+                    if (abandoned.get()) {
+                        return null;
+                    }
+                    checkCancelled(cancelled);
+                    readPiece(
+                        pixelBuffer, z, c, t, pieceX, pieceY, pw, ph,
+                        bytesPerPixel, buffer, offset, w * bytesPerPixel);
+                    return null;
+                }));
+            }
+        }
+        SPLIT_READS.inc();
+        PIECES.inc(pieces.size());
+        try {
+            for (ForkJoinTask<Void> piece : pieces) {
+                piece.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading region", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error reading region", e.getCause());
+        } finally {
+            // Pieces still running write into the caller's buffer; wait
+            // for them so that it is not reused while they do
+            abandoned.set(true);
+            for (ForkJoinTask<Void> piece : pieces) {
+                piece.quietlyJoin();
+            }
+        }
+    }
+
+    /**
+     * Shuts down the pool once all pieces have been read.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reads one piece and copies it, row by row, into place.
+     */
+    private static void readPiece(
+            PixelBuffer pixelBuffer, int z, int c, int t,
+            int x, int y, int w, int h, int bytesPerPixel,
+            byte[] buffer, int offset, int stride) throws IOException {
+        int rowBytes = w * bytesPerPixel;
+        int size = rowBytes * h;
+        byte[] piece = PIECE_BUFFER.get();
+        if (piece == null || piece.length != size) {
+            // Pieces other than those at the edges are all the same size
+            piece = new byte[size];
+            // A virtual thread helping with its own read is never reused
+            if (size <= MAX_PIECE_BUFFER_SIZE
+                    && !PixelBufferVerticle.isVirtualThread()) {
+                PIECE_BUFFER.set(piece);
+            }
+        }
+        pixelBuffer.getTileDirect(z, c, t, x, y, w, h, piece);
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(
+                    piece, row * rowBytes, buffer, offset + row * stride,
+                    rowBytes);
+        }
+    }
+
+    private static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled != null && cancelled.getAsBoolean()) {
+            throw new CancellationException("Region read cancelled");
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+}
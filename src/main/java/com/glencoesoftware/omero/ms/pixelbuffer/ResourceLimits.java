@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * Bounds how many tile requests use each class of resource at once.  With
+ * a fixed pool of worker threads the pool size is the bound; when each
+ * request runs on its own virtual thread these limits stop thousands of
+ * requests from querying the OMERO server, reading from disk or encoding
+ * all at the same time.
+ * <p>
+ * Instances are thread safe and shared by all {@link PixelBufferVerticle}
+ * instances.
+ */
+public class ResourceLimits {
+
+    private static final Gauge IN_USE = Gauge.build()
+            .name("omero_ms_pixel_buffer_resource_permits_in_use")
+            .help("Tile requests using each class of resource")
+            .labelNames("resource")
+            .register();
+
+    private static final Histogram WAIT_SECONDS = Histogram.build()
+            .name("omero_ms_pixel_buffer_resource_wait_seconds")
+            .help("Time tile requests waited for each class of resource")
+            .labelNames("resource")
+            .buckets(0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1,
+                     5)
+            .register();
+
+    /** Classes of resource used by tile requests */
+    public enum Resource {
+        /** OMERO server, and through it the database, queries */
+        DATABASE("database"),
+        /** Opening pixel buffers and reading pixel data */
+        FILESYSTEM("filesystem"),
+        /** Encoding tiles in the requested format */
+        ENCODE("encode");
+
+        /** Metric label */
+        private final String label;
+
+        Resource(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Permit which does nothing on release */
+    private static final Permit NONE = () -> {};
+
+    /** Limits which never block */
+    public static final ResourceLimits UNLIMITED =
+            new ResourceLimits(0, 0, 0);
+
+    /** Semaphore of each limited class of resource */
+    private final Map<Resource, Semaphore> semaphores =
+            new EnumMap<Resource, Semaphore>(Resource.class);
+
+    /**
+     * Default constructor.  A limit less than one leaves that class of
+     * resource unlimited.
+     * @param database requests which may query the OMERO server at once.
+     * @param filesystem requests which may open pixel buffers or read
+     * pixel data at once.
+     * @param encode requests which may encode tiles at once.
+     */
+    public ResourceLimits(int database, int filesystem, int encode) {
+        put(Resource.DATABASE, database);
+        put(Resource.FILESYSTEM, filesystem);
+        put(Resource.ENCODE, encode);
+    }
+
+    private void put(Resource resource, int permits) {
+        if (permits > 0) {
+            semaphores.put(resource, new Semaphore(permits, true));
+        }
+    }
+
+    /**
+     * Waits for a permit to use a class of resource.
+     * @param resource class of resource to use.
+     * @return Permit which must be closed once the resource has been used.
+     */
+    public Permit acquire(Resource resource) {
+        Semaphore semaphore = semaphores.get(resource);
+        if (semaphore == null) {
+            return NONE;
+        }
+        long start = System.nanoTime();
+        semaphore.acquireUninterruptibly();
+        WAIT_SECONDS.labels(resource.label)
+            .observe((System.nanoTime() - start) / 1e9);
+        IN_USE.labels(resource.label).inc();
+        return () -> {
+            IN_USE.labels(resource.label).dec();
+            semaphore.release();
+        };
+    }
+
+    /**
+     * Permit to use a class of resource.
+     */
+    public interface Permit extends AutoCloseable {
+
+        /**
+         * Returns the permit.
+         */
+        @Override
+        void close();
+    }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.zip.Deflater;
+
+import com.github.luben.zstd.Zstd;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+
+/**
+ * Encodes single channel tiles as big-endian, single strip TIFF directly
+ * from the big-endian buffer filled by
+ * {@link ome.io.nio.PixelBuffer#getTileDirect}.  Uncompressed pixel data
+ * is identical to that written by the Bio-Formats
+ * {@link loci.formats.out.TiffWriter}; no OME-XML is written.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class TiffEncoder {
+
+    /** TIFF strip compression schemes */
+    public enum Compression {
+        /** Uncompressed */
+        NONE(1),
+        /** Lempel-Ziv-Welch */
+        LZW(5),
+        /** Adobe style deflate */
+        DEFLATE(8),
+        /** Zstandard, as written by libtiff */
+        ZSTD(50000);
+
+        /** Value of the <code>Compression</code> tag */
+        private final int tag;
+
+        Compression(int tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static final int SHORT = 3;
+
+    private static final int LONG = 4;
+
+    /** Number of IFD entries written */
+    private static final int ENTRIES = 11;
+
+    /** Offset of the IFD, immediately after the header */
+    private static final int IFD_OFFSET = 8;
+
+    /** Offset of the pixel strip, immediately after the IFD */
+    private static final int STRIP_OFFSET =
+            IFD_OFFSET + 2 + ENTRIES * 12 + 4;
+
+    /** Length of everything preceding the pixel strip */
+    public static final int HEADER_LENGTH = STRIP_OFFSET;
+
+    /** Largest strip that offsets in a classic TIFF can address */
+    public static final long MAX_STRIP_LENGTH = 0xffffffffL - STRIP_OFFSET;
+
+    /** Largest TIFF file which can be encoded into a single buffer */
+    private static final long MAX_ENCODED_LENGTH = Integer.MAX_VALUE - 8;
+
+    /** Zstandard level used when none is configured */
+    private static final int DEFAULT_ZSTD_LEVEL = 3;
+
+    /** Smallest amount of space offered to the deflater at once */
+    private static final int MIN_WRITABLE = 8192;
+
+    /** Deflater of the current thread */
+    private static final ThreadLocal<Deflater> DEFLATER =
+            new ThreadLocal<Deflater>();
+
+    /** Strip compression */
+    private final Compression compression;
+
+    /**
+     * Deflate or Zstandard compression level; ignored by the other
+     * compression schemes
+     */
+    private final int compressionLevel;
+
+    /**
+     * Default constructor.
+     * @param compression strip compression.
+     * @param compressionLevel deflate or Zstandard compression level;
+     * <code>null</code> selects the codec's default.
+     */
+    public TiffEncoder(Compression compression, Integer compressionLevel) {
+        this.compression = compression;
+        if (compressionLevel == null) {
+            compressionLevel = compression == Compression.ZSTD?
+                    DEFAULT_ZSTD_LEVEL : Deflater.DEFAULT_COMPRESSION;
+        }
+        if (compression == Compression.DEFLATE
+                && compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && (compressionLevel < Deflater.NO_COMPRESSION
+                    || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException(
+                    "Invalid TIFF deflate level: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param pixelsType OMERO pixels type, for example <code>uint16</code>.
+     * @return <code>true</code> if tiles of the given type can be encoded.
+     */
+    public boolean supports(String pixelsType) {
+        return sampleFormat(pixelsType) > 0;
+    }
+
+    /**
+     * @return <code>true</code> if strips are written uncompressed, so that
+     * the header can be written before any pixel data has been read.
+     */
+    public boolean isUncompressed() {
+        return compression == Compression.NONE;
+    }
+
+    /**
+     * Encodes everything preceding the pixel strip of an uncompressed tile
+     * so that the strip can be appended as it is read.
+     * @param width tile width in pixels.
+     * @param height tile height in pixels.
+     * @param bytesPerPixel bytes per pixel.
+     * @param pixelsType OMERO pixels type of the tile.
+     * @return The first {@link #HEADER_LENGTH} bytes of the TIFF file.
+     */
+    public ByteBuf encodeHeader(
+            int width, int height, int bytesPerPixel, String pixelsType) {
+        long stripLength = (long) width * height * bytesPerPixel;
+        if (stripLength > MAX_STRIP_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Tile too large for TIFF: " + stripLength);
+        }
+        ByteBuf out = Unpooled.buffer(STRIP_OFFSET);
+        int stripByteCounts = writeHeader(
+                out, width, height, bytesPerPixel, pixelsType,
+                Compression.NONE);
+        out.setInt(stripByteCounts, (int) stripLength);
+        return out;
+    }
+
+    /**
+     * Encodes a tile.
+     * @param tile big-endian pixel data, row by row, of exactly
+     * <code>width * height * bytesPerPixel</code> bytes.
+     * @param width tile width in pixels.
+     * @param height tile height in pixels.
+     * @param pixelsType OMERO pixels type of the tile.
+     * @return The TIFF file.
+     * @throws FormatException If LZW compression fails.
+     * @throws IllegalArgumentException If the TIFF file would not fit in a
+     * single buffer.
+     */
+    public ByteBuf encode(
+            byte[] tile, int width, int height, String pixelsType)
+                    throws FormatException {
+        if (STRIP_OFFSET + (long) tile.length > MAX_ENCODED_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Tile too large to encode as TIFF: " + tile.length);
+        }
+        // Sized so that even incompressible tiles do not have to grow
+        long bound = compression == Compression.ZSTD?
+                Zstd.compressBound(tile.length)
+                : (long) tile.length + tile.length / 1000 + 64;
+        ByteBuf out = Unpooled.buffer(
+                (int) Math.min(MAX_ENCODED_LENGTH, STRIP_OFFSET + bound));
+        int stripByteCounts = writeHeader(
+                out, width, height, tile.length / width / height,
+                pixelsType, compression);
+
+        switch (compression) {
+            case NONE:
+                out.writeBytes(tile);
+                break;
+            case LZW:
+                out.writeBytes(new LZWCodec().compress(
+                        tile, CodecOptions.getDefaultOptions()));
+                break;
+            case DEFLATE:
+                deflate(tile, out);
+                break;
+            case ZSTD:
+                zstd(tile, out);
+                break;
+            default:
+                throw new IllegalStateException(
+                        "Unknown compression: " + compression);
+        }
+        out.setInt(stripByteCounts, out.writerIndex() - STRIP_OFFSET);
+        return out;
+    }
+
+    /**
+     * Frees the current thread's {@link Deflater}, if it has one.  Threads
+     * which are not reused, such as virtual threads, must call this once
+     * they have finished encoding.
+     */
+    public static void releaseThreadState() {
+        Deflater deflater = DEFLATER.get();
+        if (deflater != null) {
+            DEFLATER.remove();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes the header and IFD with a placeholder strip length.
+     * @return Index of the strip length.
+     */
+    private static int writeHeader(
+            ByteBuf out, int width, int height, int bytesPerPixel,
+            String pixelsType, Compression compression) {
+        int sampleFormat = sampleFormat(pixelsType);
+        if (sampleFormat < 1) {
+            throw new IllegalArgumentException(
+                    "Unsupported pixels type: " + pixelsType);
+        }
+        // Header: big-endian, version 42, first IFD
+        out.writeByte('M');
+        out.writeByte('M');
+        out.writeShort(42);
+        out.writeInt(IFD_OFFSET);
+
+        // IFD; entries must be sorted by tag
+        out.writeShort(ENTRIES);
+        writeEntry(out, 256, LONG, width);  // ImageWidth
+        writeEntry(out, 257, LONG, height);  // ImageLength
+        writeEntry(out, 258, SHORT, bytesPerPixel * 8);  // BitsPerSample
+        writeEntry(out, 259, SHORT, compression.tag);  // Compression
+        writeEntry(out, 262, SHORT, 1);  // PhotometricInterpretation
+        writeEntry(out, 273, LONG, STRIP_OFFSET);  // StripOffsets
+        writeEntry(out, 277, SHORT, 1);  // SamplesPerPixel
+        writeEntry(out, 278, LONG, height);  // RowsPerStrip
+        int stripByteCounts = out.writerIndex() + 8;
+        writeEntry(out, 279, LONG, 0);  // StripByteCounts
+        writeEntry(out, 284, SHORT, 1);  // PlanarConfiguration: chunky
+        writeEntry(out, 339, SHORT, sampleFormat);  // SampleFormat
+        out.writeInt(0);  // No further IFDs
+        return stripByteCounts;
+    }
+
+    /**
+     * Deflates the tile onto the end of <code>out</code>.
+     */
+    private void deflate(byte[] tile, ByteBuf out) {
+        Deflater deflater = DEFLATER.get();
+        if (deflater == null) {
+            deflater = new Deflater();
+            DEFLATER.set(deflater);
+        }
+        deflater.reset();
+        deflater.setLevel(compressionLevel);
+        deflater.setInput(tile);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (out.writerIndex() > MAX_ENCODED_LENGTH - MIN_WRITABLE) {
+                throw new IllegalArgumentException(
+                        "Deflated tile too large for a single buffer");
+            }
+            out.ensureWritable(MIN_WRITABLE);
+            int written = deflater.deflate(
+                    out.array(), out.arrayOffset() + out.writerIndex(),
+                    out.writableBytes());
+            out.writerIndex(out.writerIndex() + written);
+        }
+    }
+
+    /**
+     * Compresses the tile with Zstandard onto the end of <code>out</code>.
+     */
+    private void zstd(byte[] tile, ByteBuf out) {
+        out.ensureWritable((int) Math.min(
+                Zstd.compressBound(tile.length),
+                MAX_ENCODED_LENGTH - out.writerIndex()));
+        long written = Zstd.compressByteArray(
+                out.array(), out.arrayOffset() + out.writerIndex(),
+                out.writableBytes(), tile, 0, tile.length, compressionLevel);
+        if (Zstd.isError(written)) {
+            throw new IllegalStateException(
+                    "Zstandard compression failed: "
+                    + Zstd.getErrorName(written));
+        }
+        out.writerIndex(out.writerIndex() + (int) written);
+    }
+
+    /**
+     * Writes an IFD entry with a single value.  Values are left justified
+     * within the four byte value field.
+     */
+    private static void writeEntry(ByteBuf out, int tag, int type, int value) {
+        out.writeShort(tag);
+        out.writeShort(type);
+        out.writeInt(1);
+        if (type == SHORT) {
+            out.writeShort(value);
+            out.writeShort(0);
+        } else {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * @return Value of the <code>SampleFormat</code> tag for the given
+     * OMERO pixels type or <code>0</code> if it is not supported.
+     */
+    private static int sampleFormat(String pixelsType) {
+        switch (pixelsType) {
+            case "uint8":
+            case "uint16":
+            case "uint32":
+                return 1;
+            case "int8":
+            case "int16":
+            case "int32":
+                return 2;
+            case "float":
+            case "double":
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+}
@@ -18,10 +18,16 @@
 
 package com.glencoesoftware.omero.ms.pixelbuffer;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
 
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.glencoesoftware.omero.ms.core.OmeroRequestCtx;
 
 import io.vertx.core.MultiMap;
@@ -50,9 +56,29 @@ public class TileCtx extends OmeroRequestCtx {
     /** Region descriptor (region); X, Y, width, and height pixel offsets */
     public RegionDef region;
 
-    /** Optional region output format ("tif" only at present) */
+    /** Optional region output format ("png", "tif" or "chunk") */
     public String format;
 
+    /**
+     * {@link System#nanoTime()} when this context was last sent to the
+     * worker verticles; only meaningful within the sending JVM
+     */
+    @JsonIgnore
+    public long sent;
+
+    /**
+     * Scheduling priority supplied by the client, higher first; only
+     * meaningful within the sending JVM
+     */
+    @JsonIgnore
+    public int priority;
+
+    /**
+     * Whether the client, and every other client waiting on the same
+     * work, has gone away; only meaningful within the sending JVM
+     */
+    private volatile boolean cancelled;
+
     /**
      * Constructor for jackson to decode the object from string
      */
@@ -89,4 +115,82 @@ public class TileCtx extends OmeroRequestCtx {
         format = params.get("format");
     }
 
+    /**
+     * Key identifying the tile being requested, independent of the session
+     * requesting it.  Two contexts with the same key read the same pixels
+     * and produce the same output.
+     * @return See above.
+     */
+    public String tileKey() {
+        return imageId + "/" + z + "/" + c + "/" + t + "/" + resolution
+                + "/" + region.getX() + "," + region.getY()
+                + "," + region.getWidth() + "," + region.getHeight()
+                + "/" + format;
+    }
+
+    /**
+     * Marks this request as no longer wanted so that the worker verticles
+     * drop it if it is still queued or stop at the next opportunity if it
+     * is in progress.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return <code>true</code> if {@link #cancel()} has been called.
+     */
+    @JsonIgnore
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws if this request has been cancelled, recording the stage it was
+     * cancelled at.
+     * @param stage stage which would otherwise be entered or continued,
+     * one of the constants of {@link TileMetrics}.
+     * @throws CancellationException If this request has been cancelled.
+     */
+    public void checkCancelled(String stage) {
+        if (cancelled) {
+            TileMetrics.cancelled(stage, this);
+            throw new CancellationException("Tile request cancelled");
+        }
+    }
+
+    /**
+     * Strong entity tag of the response to this tile request, which changes
+     * whenever the tile key, the Image's pixels or the configuration of the
+     * encoder of the requested format change.
+     * @param version version of the Image's pixels, as returned by
+     * {@link TileRequestHandler#getPixelsVersion(omero.client)}.
+     * @param encoderFingerprints fingerprint of the encoder configuration
+     * by format, as returned by
+     * {@link PixelBufferVerticle#encoderFingerprints(
+     * io.vertx.core.json.JsonObject)}.
+     * @return Quoted entity tag.
+     */
+    public String etag(
+            long version, Map<String, String> encoderFingerprints) {
+        String fingerprint = format == null?
+                null : encoderFingerprints.get(format);
+        String tagged = tileKey() + "@" + version;
+        if (fingerprint != null) {
+            tagged += "@" + fingerprint;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    tagged.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder("\"");
+            // 128 bits is ample to tell versions of one tile apart
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Event bus codec for {@link TileCtx}.  Locally delivered contexts are
+ * passed by reference; contexts sent across a cluster are written as
+ * length prefixed JSON using a single shared {@link ObjectMapper}.
+ */
+public class TileCtxCodec implements MessageCodec<TileCtx, TileCtx> {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Override
+    public void encodeToWire(Buffer buffer, TileCtx tileCtx) {
+        try {
+            byte[] json = MAPPER.writeValueAsBytes(tileCtx);
+            buffer.appendInt(json.length);
+            buffer.appendBytes(json);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Illegal tile context", e);
+        }
+    }
+
+    @Override
+    public TileCtx decodeFromWire(int pos, Buffer buffer) {
+        int length = buffer.getInt(pos);
+        pos += 4;
+        try {
+            return MAPPER.readValue(
+                    buffer.getBytes(pos, pos + length), TileCtx.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Illegal tile context", e);
+        }
+    }
+
+    @Override
+    public TileCtx transform(TileCtx tileCtx) {
+        return tileCtx;
+    }
+
+    @Override
+    public String name() {
+        return "omero.pixel_buffer.tile_ctx";
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+
+}
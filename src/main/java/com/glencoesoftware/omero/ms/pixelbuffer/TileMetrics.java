@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Always on Prometheus metrics for each stage of the tile pipeline, from
+ * resolving the OMERO.web session to writing the response, so that latency
+ * can be attributed to the session store, the event bus, the OMERO server,
+ * the filesystem or the encoder without tracing enabled.
+ * <p>
+ * Stages are labelled with the requested format (<code>raw</code> if
+ * none), the resolution level (empty for the default) and the pixels type
+ * (empty where it is not yet known).
+ */
+public class TileMetrics {
+
+    /** Resolving the OMERO.web session from the session store */
+    public static final String SESSION_RESOLUTION = "session_resolution";
+
+    /** Waiting on the event bus for a worker verticle */
+    public static final String QUEUE_WAIT = "queue_wait";
+
+    /** Acquiring a joined OMERO session */
+    public static final String SESSION_JOIN = "session_join";
+
+    /** Retrieving Pixels metadata and checking permissions */
+    public static final String GET_PIXELS = "get_pixels";
+
+    /** Acquiring, or opening, a pixel buffer */
+    public static final String GET_PIXEL_BUFFER = "get_pixel_buffer";
+
+    /** Reading pixel data */
+    public static final String READ = "read";
+
+    /** Encoding the tile in the requested format */
+    public static final String ENCODE = "encode";
+
+    /** Writing the response until the last byte is handed to the socket */
+    public static final String RESPONSE_WRITE = "response_write";
+
+    private static final Histogram STAGE_SECONDS = Histogram.build()
+            .name("omero_ms_pixel_buffer_tile_stage_seconds")
+            .help("Time spent in each stage of retrieving a tile")
+            .labelNames("stage", "format", "resolution", "pixel_type")
+            .buckets(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+                     0.25, 0.5, 1, 2.5, 5, 10)
+            .register();
+
+    private static final Counter READ_BYTES = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_read_bytes_total")
+            .help("Raw pixel data read for tiles in bytes")
+            .labelNames("format", "resolution", "pixel_type")
+            .register();
+
+    private static final Counter SENT_BYTES = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_sent_bytes_total")
+            .help("Tile response bodies sent in bytes")
+            .labelNames("format")
+            .register();
+
+    private static final Counter CANCELLED = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_cancelled_total")
+            .help("Tile requests cancelled, after their clients went away, "
+                  + "before or during a stage")
+            .labelNames("stage", "format")
+            .register();
+
+    private TileMetrics() {
+    }
+
+    /**
+     * Records the time spent in a stage.
+     * @param stage stage, one of the constants of this class.
+     * @param tileCtx tile being retrieved.
+     * @param pixelsType OMERO pixels type of the Image or <code>null</code>
+     * if it is not known.
+     * @param start {@link System#nanoTime()} when the stage started.
+     */
+    public static void observe(
+            String stage, TileCtx tileCtx, String pixelsType, long start) {
+        STAGE_SECONDS
+            .labels(stage, format(tileCtx), resolution(tileCtx),
+                    pixelsType == null? "" : pixelsType)
+            .observe((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Records raw pixel data read.
+     * @param tileCtx tile being retrieved.
+     * @param pixelsType OMERO pixels type of the Image.
+     * @param bytes number of bytes read.
+     */
+    public static void read(TileCtx tileCtx, String pixelsType, long bytes) {
+        READ_BYTES
+            .labels(format(tileCtx), resolution(tileCtx), pixelsType)
+            .inc(bytes);
+    }
+
+    /**
+     * Records a response body, or part of one, sent.
+     * @param tileCtx tile that was requested.
+     * @param bytes number of bytes sent.
+     */
+    public static void sent(TileCtx tileCtx, long bytes) {
+        SENT_BYTES.labels(format(tileCtx)).inc(bytes);
+    }
+
+    /**
+     * Records a request cancelled before or during a stage, which together
+     * with the stage's latency shows the worker time saved.
+     * @param stage stage which was skipped or interrupted.
+     * @param tileCtx tile that was requested.
+     */
+    public static void cancelled(String stage, TileCtx tileCtx) {
+        CANCELLED.labels(stage, format(tileCtx)).inc();
+    }
+
+    private static String format(TileCtx tileCtx) {
+        if (tileCtx.format == null) {
+            return "raw";
+        }
+        switch (tileCtx.format) {
+            case "png":
+            case "tif":
+            case PixelBufferVerticle.CHUNK_FORMAT:
+                return tileCtx.format;
+            default:
+                // Bounds the label's cardinality
+                return "other";
+        }
+    }
+
+    private static String resolution(TileCtx tileCtx) {
+        return tileCtx.resolution == null?
+                "" : String.valueOf(tileCtx.resolution);
+    }
+
+}
@@ -19,9 +19,10 @@
 package com.glencoesoftware.omero.ms.pixelbuffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 import loci.common.ByteArrayHandle;
 import loci.common.Location;
@@ -41,12 +42,15 @@ import org.springframework.context.ApplicationContext;
 
 import brave.ScopedSpan;
 import brave.Tracing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelsService;
-import omero.ApiUsageException;
+import ome.model.core.Pixels;
+import ome.model.meta.Event;
+import omero.RType;
 import omero.ServerError;
 import omero.model.Image;
-import omero.model.Pixels;
 import omero.sys.ParametersI;
 import omero.util.IceMapper;
 
@@ -55,12 +59,55 @@ public class TileRequestHandler {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(TileRequestHandler.class);
 
+    /** Largest tile which can be read in one go, into a single array */
+    public static final long MAX_TILE_SIZE = Integer.MAX_VALUE - 8;
+
+    /** Largest read buffer retained by a worker thread for reuse */
+    private static final int MAX_READ_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Per thread buffer that tiles are read into when they are encoded
+     * before being returned, and so never leave the worker.  Viewers
+     * request tiles of only a few sizes so it is only reused when the size
+     * matches exactly, which keeps it safe to pass to Bio-Formats writers.
+     * Not kept by virtual threads.
+     */
+    private static final ThreadLocal<byte[]> READ_BUFFER =
+            new ThreadLocal<byte[]>();
+
     /** OMERO server pixels service. */
     private final PixelsService pixelsService;
 
+    /** Cache of open pixel buffers */
+    private final PixelBufferCache pixelBufferCache;
+
+    /** Cache of Pixels metadata */
+    private final PixelsCache pixelsCache;
+
+    /** Reader which splits large regions into concurrent reads */
+    private final RegionReader regionReader;
+
+    /** Encoder for 8 and 16 bit PNG tiles */
+    private final PngEncoder pngEncoder;
+
+    /** Encoder for TIFF tiles */
+    private final TiffEncoder tiffEncoder;
+
+    /** Reader of stored Zarr chunks */
+    private final ZarrChunkReader chunkReader;
+
+    /** Limits on the resources used by concurrent requests */
+    private final ResourceLimits resourceLimits;
+
     /** Tile Context */
     private final TileCtx tileCtx;
 
+    /** {@link Pixels} of the current tile's Image, once retrieved */
+    private Pixels loadedPixels;
+
+    /** Region of the current tile with its size filled in, once known */
+    private RegionDef filledRegion;
+
     /**
      * Mapper between <code>omero.model</code> client side Ice backed objects
      * and <code>ome.model</code> server side Hibernate backed objects.
@@ -69,47 +116,110 @@ public class TileRequestHandler {
 
     /**
      * Default constructor.
+     * @param pixelsService OMERO server pixels service.
+     * @param pixelBufferCache cache of open pixel buffers.
+     * @param pixelsCache cache of Pixels metadata.
+     * @param regionReader reader which splits large regions into
+     * concurrent reads.
+     * @param pngEncoder encoder for 8 and 16 bit PNG tiles.
+     * @param tiffEncoder encoder for TIFF tiles.
+     * @param chunkReader reader of stored Zarr chunks.
+     * @param tileCtx {@link TileCtx} object
+     */
+    public TileRequestHandler(
+            PixelsService pixelsService, PixelBufferCache pixelBufferCache,
+            PixelsCache pixelsCache, RegionReader regionReader,
+            PngEncoder pngEncoder, TiffEncoder tiffEncoder,
+            ZarrChunkReader chunkReader, TileCtx tileCtx) {
+        this(pixelsService, pixelBufferCache, pixelsCache, regionReader,
+             pngEncoder, tiffEncoder, chunkReader, ResourceLimits.UNLIMITED,
+             tileCtx);
+    }
+
+    /**
+     * Constructor with limits on the resources used by concurrent requests.
+     * @param pixelsService OMERO server pixels service.
+     * @param pixelBufferCache cache of open pixel buffers.
+     * @param pixelsCache cache of Pixels metadata.
+     * @param regionReader reader which splits large regions into
+     * concurrent reads.
+     * @param pngEncoder encoder for 8 and 16 bit PNG tiles.
+     * @param tiffEncoder encoder for TIFF tiles.
+     * @param chunkReader reader of stored Zarr chunks.
+     * @param resourceLimits limits on the resources used by concurrent
+     * requests.
      * @param tileCtx {@link TileCtx} object
      */
-    public TileRequestHandler(PixelsService pixelsService, TileCtx tileCtx) {
+    public TileRequestHandler(
+            PixelsService pixelsService, PixelBufferCache pixelBufferCache,
+            PixelsCache pixelsCache, RegionReader regionReader,
+            PngEncoder pngEncoder, TiffEncoder tiffEncoder,
+            ZarrChunkReader chunkReader, ResourceLimits resourceLimits,
+            TileCtx tileCtx) {
         log.info("Setting up handler");
         this.pixelsService = pixelsService;
+        this.pixelBufferCache = pixelBufferCache;
+        this.pixelsCache = pixelsCache;
+        this.regionReader = regionReader;
+        this.pngEncoder = pngEncoder;
+        this.tiffEncoder = tiffEncoder;
+        this.chunkReader = chunkReader;
+        this.resourceLimits = resourceLimits;
         this.tileCtx = tileCtx;
     }
 
-    public byte[] getTile(omero.client client) {
+    /**
+     * Retrieves the current tile, encoded in the requested format.
+     * @param client OMERO client to use for querying.
+     * @return The tile or <code>null</code> if the Image does not exist,
+     * may not be read or the tile could not be retrieved.
+     * @throws CancellationException If the request was cancelled before
+     * the tile had been read and encoded.
+     */
+    public ByteBuf getTile(omero.client client) {
         ScopedSpan span =
                 Tracing.currentTracer().startScopedSpan("get_tile");
         try {
             Pixels pixels = getPixels(client, tileCtx.imageId);
             if (pixels != null) {
-                try (PixelBuffer pixelBuffer = getPixelBuffer(pixels)) {
-                    String format = tileCtx.format;
-                    RegionDef region = tileCtx.region;
-                    if (tileCtx.resolution != null) {
-                        pixelBuffer.setResolutionLevel(tileCtx.resolution);
-                    }
-                    if (region.getWidth() == 0) {
-                        region.setWidth(pixels.getSizeX().getValue());
-                    }
-                    if (region.getHeight() == 0) {
-                        region.setHeight(pixels.getSizeY().getValue());
-                    }
+                tileCtx.checkCancelled(TileMetrics.GET_PIXEL_BUFFER);
+                try (PixelBufferCache.Lease lease = getPixelBuffer(pixels)) {
+                    PixelBuffer pixelBuffer = lease.getPixelBuffer();
+                    String format = outputFormat();
+                    RegionDef region = fillRegion(pixels);
                     int width = region.getWidth();
                     int height = region.getHeight();
                     int bytesPerPixel =
-                            pixels.getPixelsType().getBitSize().getValue() / 8;
-                    int tileSize = width * height * bytesPerPixel;
-                    byte[] tile = new byte[tileSize];
+                            pixels.getPixelsType().getBitSize() / 8;
+                    long size = (long) width * height * bytesPerPixel;
+                    if (size > MAX_TILE_SIZE) {
+                        throw new IllegalArgumentException(
+                                "Tile too large: " + size);
+                    }
+                    int tileSize = (int) size;
+                    // Raw tiles are returned as read; anything else is
+                    // encoded and never leaves this thread
+                    byte[] tile = format == null?
+                            new byte[tileSize] : readBuffer(tileSize);
+                    String pixelsType = pixels.getPixelsType().getValue();
                     ScopedSpan span2 =
                             Tracing.currentTracer().startScopedSpan("get_tile_direct");
-                    try {
-                        pixelBuffer.getTileDirect(
-                            tileCtx.z, tileCtx.c, tileCtx.t,
-                            region.getX(), region.getY(), width, height, tile);
+                    long start = System.nanoTime();
+                    try (ResourceLimits.Permit permit = resourceLimits
+                            .acquire(ResourceLimits.Resource.FILESYSTEM)) {
+                        regionReader.read(
+                            pixelBuffer, tileCtx.z, tileCtx.c, tileCtx.t,
+                            region.getX(), region.getY(), width, height,
+                            bytesPerPixel, tile, tileCtx::isCancelled);
+                    } catch (CancellationException e) {
+                        TileMetrics.cancelled(TileMetrics.READ, tileCtx);
+                        throw e;
                     } finally {
                         span2.finish();
                     }
+                    TileMetrics.observe(
+                            TileMetrics.READ, tileCtx, pixelsType, start);
+                    TileMetrics.read(tileCtx, pixelsType, tileSize);
 
                     log.debug(
                             "Image:{}, z: {}, c: {}, t: {}, resolution: {}, " +
@@ -117,19 +227,32 @@ public class TileRequestHandler {
                             tileCtx.imageId, tileCtx.z, tileCtx.c, tileCtx.t,
                             tileCtx.resolution, region, format);
                     if (format != null) {
-                        IMetadata metadata = createMetadata(pixels);
-
-                        if (format.equals("png") || format.equals("tif")) {
-                            return writeImage(format, tile, metadata);
+                        tileCtx.checkCancelled(TileMetrics.ENCODE);
+                        start = System.nanoTime();
+                        ByteBuf encoded;
+                        try (ResourceLimits.Permit permit = resourceLimits
+                                .acquire(ResourceLimits.Resource.ENCODE)) {
+                            encoded = encode(
+                                pixels, tile, width, height, bytesPerPixel);
+                        } catch (CancellationException e) {
+                            TileMetrics.cancelled(
+                                    TileMetrics.ENCODE, tileCtx);
+                            throw e;
                         }
-                        log.error("Unknown output format: {}", format);
-                        return null;
+                        if (encoded != null) {
+                            TileMetrics.observe(
+                                    TileMetrics.ENCODE, tileCtx, pixelsType,
+                                    start);
+                        }
+                        return encoded;
                     }
-                    return tile;
+                    return Unpooled.wrappedBuffer(tile);
                 }
             } else {
                 log.debug("Cannot find Image:{}", tileCtx.imageId);
             }
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Exception while retrieving tile", e);
         } finally {
@@ -139,14 +262,203 @@ public class TileRequestHandler {
     }
 
 
+    /**
+     * Determines the size of the raw pixel data of the current tile.
+     * @param client OMERO client to use for querying.
+     * @return Size in bytes or <code>null</code> if the Image does not
+     * exist or may not be read.
+     * @throws Exception If there was any sort of error querying.
+     */
+    public Long getTileSize(omero.client client) throws Exception {
+        Pixels pixels = getPixels(client, tileCtx.imageId);
+        if (pixels == null) {
+            return null;
+        }
+        RegionDef region = fillRegion(pixels);
+        return (long) region.getWidth() * region.getHeight()
+                * (pixels.getPixelsType().getBitSize() / 8);
+    }
+
+    /**
+     * Retrieves the stored Zarr chunk which the current tile covers
+     * exactly, without decompressing it.
+     * @param client OMERO client to use for querying.
+     * @return The chunk or <code>null</code> if the Image does not exist,
+     * may not be read or is not stored as supported NGFF, in which case
+     * the raw tile is to be returned by {@link #getTile(omero.client)}
+     * instead.
+     * @throws IllegalArgumentException If the tile does not match a chunk.
+     * @throws Exception If there was any sort of error reading the chunk.
+     */
+    public ZarrChunkReader.Chunk getChunk(omero.client client)
+            throws Exception {
+        Pixels pixels = getPixels(client, tileCtx.imageId);
+        if (pixels == null) {
+            return null;
+        }
+        String pixelsType = pixels.getPixelsType().getValue();
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("read_chunk");
+        long start = System.nanoTime();
+        try (PixelBufferCache.Lease lease = getPixelBuffer(pixels);
+             ResourceLimits.Permit permit = resourceLimits.acquire(
+                     ResourceLimits.Resource.FILESYSTEM)) {
+            ZarrChunkReader.Chunk chunk = chunkReader.read(
+                    lease.getPixelBuffer(), pixels, tileCtx.resolution,
+                    tileCtx.z, tileCtx.c, tileCtx.t, fillRegion(pixels));
+            if (chunk == null) {
+                log.debug("Image:{} has no stored chunks; reading tile",
+                        tileCtx.imageId);
+                return null;
+            }
+            TileMetrics.observe(TileMetrics.READ, tileCtx, pixelsType, start);
+            TileMetrics.read(tileCtx, pixelsType, chunk.data.readableBytes());
+            return chunk;
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Whether the current tile can be returned by
+     * {@link #getTileStream(omero.client, int)}: raw tiles can always be
+     * streamed and TIFF tiles can be if they are uncompressed and small
+     * enough for a classic TIFF.
+     * @param size size of the raw pixel data of the current tile.
+     * @return See above.
+     */
+    public boolean isStreamable(long size) {
+        if (outputFormat() == null) {
+            return true;
+        }
+        return "tif".equals(tileCtx.format)
+                && tiffEncoder.isUncompressed()
+                && size <= TiffEncoder.MAX_STRIP_LENGTH;
+    }
+
+    /**
+     * @return Format the current tile is encoded in or <code>null</code>
+     * for raw pixels, which are also what is returned in place of a chunk
+     * that cannot be read as stored.
+     */
+    private String outputFormat() {
+        return PixelBufferVerticle.CHUNK_FORMAT.equals(tileCtx.format)?
+                null : tileCtx.format;
+    }
+
+    /**
+     * Opens the current tile for reading in bands of rows.  The tile must
+     * be streamable as determined by {@link #isStreamable(long)}.
+     * @param client OMERO client to use for querying.
+     * @param bandSize approximate size of each band in bytes.
+     * @return Stream which must be closed after use or <code>null</code>
+     * if the Image does not exist or may not be read.
+     * @throws Exception If there was any sort of error opening the tile.
+     */
+    public TileStream getTileStream(omero.client client, int bandSize)
+            throws Exception {
+        Pixels pixels = getPixels(client, tileCtx.imageId);
+        if (pixels == null) {
+            return null;
+        }
+        RegionDef region = fillRegion(pixels);
+        int bytesPerPixel = pixels.getPixelsType().getBitSize() / 8;
+        PixelBufferCache.Lease lease = getPixelBuffer(pixels);
+        try {
+            ByteBuf header = null;
+            if ("tif".equals(tileCtx.format)) {
+                header = tiffEncoder.encodeHeader(
+                        region.getWidth(), region.getHeight(), bytesPerPixel,
+                        pixels.getPixelsType().getValue());
+            }
+            return new TileStream(
+                    lease, regionReader, resourceLimits, tileCtx, region,
+                    pixels.getPixelsType().getValue(), bytesPerPixel,
+                    bandSize, header);
+        } catch (RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fills in a region width or height of zero with that of the Image.
+     * The tile context is shared with the HTTP verticle, which keys
+     * in-flight requests by its region, so a copy is filled in.
+     * @param pixels {@link Pixels} of the Image.
+     * @return The region of the current tile.
+     */
+    private RegionDef fillRegion(Pixels pixels) {
+        if (filledRegion == null) {
+            RegionDef region = tileCtx.region;
+            filledRegion = new RegionDef(
+                    region.getX(), region.getY(),
+                    region.getWidth() == 0?
+                            pixels.getSizeX() : region.getWidth(),
+                    region.getHeight() == 0?
+                            pixels.getSizeY() : region.getHeight());
+        }
+        return filledRegion;
+    }
+
+    /**
+     * @return The region of the current tile, with a width or height of
+     * zero filled in with that of the Image once its {@link Pixels} have
+     * been retrieved.
+     */
+    public RegionDef getRegion() {
+        return filledRegion != null? filledRegion : tileCtx.region;
+    }
+
+    /**
+     * Retrieves this thread's read buffer, allocating it if it is not of the
+     * required size.
+     * @param size required size in bytes.
+     * @return See above.
+     */
+    private static byte[] readBuffer(int size) {
+        byte[] buffer = READ_BUFFER.get();
+        if (buffer == null || buffer.length != size) {
+            buffer = new byte[size];
+            // Virtual threads are never reused; keeping it would only pin
+            // the buffer until the thread ends
+            if (size <= MAX_READ_BUFFER_SIZE
+                    && !PixelBufferVerticle.isVirtualThread()) {
+                READ_BUFFER.set(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Checks whether the current session may read the Image of the current
+     * tile, without reading any pixel data, and determines the version of
+     * its pixels.
+     * @param client OMERO client to use for querying.
+     * @return Identifier of the event which last updated the Image's
+     * {@link Pixels} or <code>null</code> if the Image does not exist or
+     * may not be read.
+     * @throws Exception If there was any sort of error querying.
+     */
+    public Long getPixelsVersion(omero.client client) throws Exception {
+        Pixels pixels = getPixels(client, tileCtx.imageId);
+        if (pixels == null) {
+            return null;
+        }
+        Event updateEvent = pixels.getDetails().getUpdateEvent();
+        return updateEvent == null || updateEvent.getId() == null?
+                0L : updateEvent.getId();
+    }
+
     /**
      * Construct a minimal IMetadata instance representing the current tile.
      */
-    private IMetadata createMetadata(Pixels pixels)
+    IMetadata createMetadata(Pixels pixels)
             throws EnumerationException {
         ScopedSpan span =
                 Tracing.currentTracer().startScopedSpan("create_metadata");
         try {
+            RegionDef region = fillRegion(pixels);
             IMetadata metadata = MetadataTools.createOMEXMLMetadata();
             metadata.setImageID("Image:0", 0);
             metadata.setPixelsID("Pixels:0", 0);
@@ -154,29 +466,90 @@ public class TileRequestHandler {
             metadata.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
             metadata.setPixelsBigEndian(true, 0);
             metadata.setPixelsSizeX(
-                    new PositiveInteger(tileCtx.region.getWidth()), 0);
+                    new PositiveInteger(region.getWidth()), 0);
             metadata.setPixelsSizeY(
-                    new PositiveInteger(tileCtx.region.getHeight()), 0);
+                    new PositiveInteger(region.getHeight()), 0);
             metadata.setPixelsSizeZ(new PositiveInteger(1), 0);
             metadata.setPixelsSizeC(new PositiveInteger(1), 0);
             metadata.setPixelsSizeT(new PositiveInteger(1), 0);
             metadata.setPixelsDimensionOrder(DimensionOrder.XYCZT, 0);
             metadata.setPixelsType(PixelType.fromString(
-                    pixels.getPixelsType().getValue().getValue()), 0);
+                    pixels.getPixelsType().getValue()), 0);
             return metadata;
         } finally {
             span.finish();
         }
     }
 
+    /**
+     * Encode the tile specified by the given buffer in the requested format.
+     * @return The encoded tile or <code>null</code> if the format is not
+     * known.
+     */
+    private ByteBuf encode(
+            Pixels pixels, byte[] tile, int width, int height,
+            int bytesPerPixel) throws Exception {
+        String format = tileCtx.format;
+        String pixelsType = pixels.getPixelsType().getValue();
+        if (format.equals("png") && pngEncoder.supports(pixelsType)) {
+            return encodePng(tile, width, height, bytesPerPixel);
+        }
+        if (format.equals("tif") && tiffEncoder.supports(pixelsType)) {
+            return encodeTiff(tile, width, height, pixelsType);
+        }
+        if (format.equals("png") || format.equals("tif")) {
+            IMetadata metadata = createMetadata(pixels);
+            return writeImage(format, tile, metadata);
+        }
+        log.error("Unknown output format: {}", format);
+        return null;
+    }
+
+    /**
+     * Encode the tile specified by the given buffer as PNG without going
+     * through Bio-Formats.
+     */
+    private ByteBuf encodePng(
+            byte[] tile, int width, int height, int bytesPerPixel) {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("encode_png");
+        try {
+            return pngEncoder.encode(
+                    tile, width, height, bytesPerPixel, tileCtx::isCancelled);
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Encode the tile specified by the given buffer as TIFF without going
+     * through Bio-Formats.
+     */
+    private ByteBuf encodeTiff(
+            byte[] tile, int width, int height, String pixelsType)
+                    throws FormatException {
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("encode_tiff");
+        try {
+            return tiffEncoder.encode(tile, width, height, pixelsType);
+        } finally {
+            span.finish();
+        }
+    }
+
     /**
      * Write the tile specified by the given buffer and IMetadata to memory.
      * The output format is determined by the extension (e.g. "png", "tif")
      */
-    private byte[] writeImage(String extension, byte[] tile, IMetadata metadata)
+    ByteBuf writeImage(String extension, byte[] tile, IMetadata metadata)
             throws FormatException, IOException {
         String id = System.currentTimeMillis() + "." + extension;
-        ByteArrayHandle handle = new ByteArrayHandle();
+        // Sized for the uncompressed tile plus headers so that the handle
+        // does not have to grow while it is being written; the length is
+        // then reset, as the capacity constructor sets it to the capacity
+        ByteArrayHandle handle = new ByteArrayHandle(
+                tile.length + tile.length / 256 + 8192);
+        handle.setLength(0);
         ScopedSpan span =
                 Tracing.currentTracer().startScopedSpan("write_image");
         try (ImageWriter writer = new ImageWriter()) {
@@ -185,12 +558,9 @@ public class TileRequestHandler {
             writer.setId(id);
             writer.saveBytes(0, tile);
 
-            // trim byte array to written length (not backing array length)
-            ByteBuffer bytes = handle.getByteBuffer();
-            byte[] file = new byte[(int) handle.length()];
-            bytes.position(0);
-            bytes.get(file);
-            return file;
+            // Written length, not backing array length
+            return Unpooled.wrappedBuffer(
+                    handle.getBytes(), 0, (int) handle.length());
         } finally {
             Location.mapFile(id, null);
             handle.close();
@@ -198,13 +568,89 @@ public class TileRequestHandler {
         }
     }
 
-    protected PixelBuffer getPixelBuffer(Pixels pixels)
-            throws ApiUsageException {
+    /**
+     * Acquires a lease on a pixel buffer for the given {@link Pixels} at the
+     * requested resolution level, opening it if it is not already cached.
+     * @param pixels {@link Pixels} to retrieve the pixel buffer for.
+     * @return Lease on the pixel buffer which must be closed after use.
+     * @throws Exception If there was an error opening the pixel buffer.
+     */
+    protected PixelBufferCache.Lease getPixelBuffer(Pixels pixels)
+            throws Exception {
         ScopedSpan span =
                 Tracing.currentTracer().startScopedSpan("get_pixel_buffer");
+        long start = System.nanoTime();
         try {
-            return pixelsService.getPixelBuffer(
-                    (ome.model.core.Pixels) mapper.reverse(pixels), false);
+            PixelBufferCache.Lease lease = pixelBufferCache.acquire(
+                    pixels.getId(), tileCtx.resolution, () -> {
+                PixelBuffer pixelBuffer;
+                try (ResourceLimits.Permit permit = resourceLimits.acquire(
+                        ResourceLimits.Resource.FILESYSTEM)) {
+                    pixelBuffer = pixelsService.getPixelBuffer(pixels, false);
+                }
+                // Lets the scheduler rank full resolution requests
+                pixelsCache.putResolutionLevels(
+                        tileCtx.imageId, pixelBuffer.getResolutionLevels());
+                if (tileCtx.resolution != null) {
+                    try {
+                        pixelBuffer.setResolutionLevel(tileCtx.resolution);
+                    } catch (RuntimeException e) {
+                        pixelBuffer.close();
+                        throw e;
+                    }
+                }
+                return pixelBuffer;
+            });
+            TileMetrics.observe(
+                    TileMetrics.GET_PIXEL_BUFFER, tileCtx,
+                    pixels.getPixelsType().getValue(), start);
+            return lease;
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * Retrieves a single {@link Pixels}, from the cache if the current
+     * session has recently been allowed to read it or from the server.
+     * Once retrieved the {@link Pixels} are kept for the lifetime of this
+     * handler, which serves a single tile.
+     * @param client OMERO client to use for querying.
+     * @param imageId {@link Image} identifier to query for; that of the
+     * current tile.
+     * @return Loaded {@link Pixels} or <code>null</code> if it does not exist
+     * or the current session may not read it.
+     * @throws Exception If there was any sort of error retrieving the pixels.
+     */
+    protected Pixels getPixels(omero.client client, Long imageId)
+            throws Exception {
+        if (loadedPixels != null) {
+            return loadedPixels;
+        }
+        ScopedSpan span =
+                Tracing.currentTracer().startScopedSpan("get_pixels");
+        long start = System.nanoTime();
+        try {
+            loadedPixels = pixelsCache.get(
+                    tileCtx.omeroSessionKey, imageId,
+                    () -> {
+                        try (ResourceLimits.Permit permit = resourceLimits
+                                .acquire(ResourceLimits.Resource.DATABASE)) {
+                            return queryPixels(client, imageId);
+                        }
+                    },
+                    () -> {
+                        try (ResourceLimits.Permit permit = resourceLimits
+                                .acquire(ResourceLimits.Resource.DATABASE)) {
+                            return canRead(client, imageId);
+                        }
+                    });
+            TileMetrics.observe(
+                    TileMetrics.GET_PIXELS, tileCtx,
+                    loadedPixels == null?
+                            null : loadedPixels.getPixelsType().getValue(),
+                    start);
+            return loadedPixels;
         } finally {
             span.finish();
         }
@@ -214,30 +660,53 @@ public class TileRequestHandler {
      * Retrieves a single {@link Pixels} from the server.
      * @param client OMERO client to use for querying.
      * @param imageId {@link Image} identifier to query for.
-     * @return Loaded {@link Pixels} or <code>null</code> if it does not exist.
+     * @return Loaded and mapped {@link Pixels} or <code>null</code> if it
+     * does not exist.
      * @throws ServerError If there was any sort of error retrieving the pixels.
      */
-    protected Pixels getPixels(omero.client client, Long imageId)
+    protected Pixels queryPixels(omero.client client, Long imageId)
             throws ServerError {
         Map<String, String> ctx = new HashMap<String, String>();
         ctx.put("omero.group", "-1");
         ParametersI params = new ParametersI();
         params.addId(imageId);
-        ScopedSpan span =
-                Tracing.currentTracer().startScopedSpan("get_pixels");
-        try {
-            return (Pixels) client.getSession().getQueryService().findByQuery(
-                "SELECT p FROM Pixels as p " +
-                "JOIN FETCH p.image as i " +
-                "LEFT OUTER JOIN FETCH i.format " +
-                "LEFT OUTER JOIN FETCH i.details.externalInfo " +
-                "JOIN FETCH p.pixelsType " +
-                "WHERE i.id = :id",
-                params, ctx
-            );
-        } finally {
-            span.finish();
+        omero.model.Pixels pixels = (omero.model.Pixels)
+                client.getSession().getQueryService().findByQuery(
+                    "SELECT p FROM Pixels as p " +
+                    "JOIN FETCH p.image as i " +
+                    "LEFT OUTER JOIN FETCH i.format " +
+                    "LEFT OUTER JOIN FETCH i.details.externalInfo " +
+                    "LEFT OUTER JOIN FETCH p.details.updateEvent " +
+                    "JOIN FETCH p.pixelsType " +
+                    "WHERE i.id = :id",
+                    params, ctx
+                );
+        if (pixels == null) {
+            return null;
         }
+        return (Pixels) mapper.reverse(pixels);
+    }
+
+    /**
+     * Checks whether the current session may read an {@link Image}.
+     * @param client OMERO client to use for querying.
+     * @param imageId {@link Image} identifier to query for.
+     * @return <code>true</code> if the {@link Image} exists and the session
+     * may read it, <code>false</code> otherwise.
+     * @throws ServerError If there was any sort of error querying.
+     */
+    protected boolean canRead(omero.client client, Long imageId)
+            throws ServerError {
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", "-1");
+        ParametersI params = new ParametersI();
+        params.addId(imageId);
+        List<List<RType>> rows =
+                client.getSession().getQueryService().projection(
+                    "SELECT i.id FROM Image as i WHERE i.id = :id",
+                    params, ctx
+                );
+        return !rows.isEmpty();
     }
 
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Byte budgeted cache of encoded tile responses keyed by
+ * {@link TileCtx#tileKey()}.  Response bodies are held off-heap in pooled
+ * direct buffers so that a large budget does not add to garbage collection
+ * pauses.  Each response is stored with its entity tag and is only served
+ * while that still matches, so no response outlives an update of the
+ * Image's pixels.
+ * <p>
+ * Eviction is least recently used but admission is frequency aware: a new
+ * tile only displaces the least recently used one if it has been requested
+ * more often recently, as estimated by a small count-min sketch.  One-off
+ * requests, such as a region scan, therefore do not flush frequently
+ * requested tiles.
+ * <p>
+ * Not thread safe; all access must be from the HTTP verticle's event loop.
+ */
+public class TileResponseCache {
+
+    private static final Counter HITS = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_cache_hits_total")
+            .help("Tile response cache hits")
+            .register();
+
+    private static final Counter MISSES = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_cache_misses_total")
+            .help("Tile response cache misses")
+            .register();
+
+    private static final Counter REJECTIONS = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_cache_rejections_total")
+            .help("Tiles not admitted to the tile response cache")
+            .register();
+
+    private static final Counter EVICTIONS = Counter.build()
+            .name("omero_ms_pixel_buffer_tile_cache_evictions_total")
+            .help("Tile response cache evictions")
+            .register();
+
+    private static final Gauge SIZE_BYTES = Gauge.build()
+            .name("omero_ms_pixel_buffer_tile_cache_size_bytes")
+            .help("Total size of cached tile responses in bytes")
+            .register();
+
+    /** Maximum total size of cached responses in bytes */
+    private final long maxSize;
+
+    /** Maximum size of a single cached response in bytes */
+    private final int maxEntrySize;
+
+    /** Estimates how often each tile key has been requested recently */
+    private final FrequencySketch sketch;
+
+    /** Cached responses in least recently used order */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** Current total size of cached responses in bytes */
+    private long size = 0;
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum total size of cached responses in bytes.
+     * @param maxEntrySize maximum size of a single cached response in
+     * bytes.
+     */
+    public TileResponseCache(long maxSize, int maxEntrySize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        // Size the sketch for the number of typical 64KiB tiles that fit
+        sketch = new FrequencySketch(
+                (int) Math.min(1 << 18, Math.max(1024, maxSize / 65536)));
+    }
+
+    /**
+     * Records a request for a tile.  Must be called once for every tile
+     * request, whether or not it can be served from the cache.
+     * @param key tile key.
+     * @return <code>true</code> if the tile is cached.
+     */
+    public boolean touch(String key) {
+        sketch.increment(key);
+        boolean cached = entries.containsKey(key);
+        if (!cached) {
+            MISSES.inc();
+        }
+        return cached;
+    }
+
+    /**
+     * Retrieves a cached response.  A response cached with a different
+     * entity tag is stale and is removed.
+     * @param key tile key.
+     * @param etag current entity tag of the tile response.
+     * @return The cached response, sharing the cached bytes, or
+     * <code>null</code> if it is not cached.  It must be released with
+     * {@link CachedTile#release()} once its bytes have been written to the
+     * socket, or will no longer be.  Ending the response is not enough; a
+     * slow client may still have them queued.
+     */
+    public CachedTile get(String key, String etag) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.etag.equals(etag)) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            MISSES.inc();
+            return null;
+        }
+        HITS.inc();
+        // Retained so that eviction does not return the bytes to the pool
+        // while they are still queued for writing
+        return new CachedTile(entry.data.retainedDuplicate(), entry.filename);
+    }
+
+    /**
+     * Offers a response to the cache.  It is only admitted if it fits and
+     * has been requested more often than the responses it would displace.
+     * It replaces a cached response with a different entity tag.
+     * @param key tile key.
+     * @param data response body.
+     * @param filename response filename.
+     * @param etag entity tag of the response.
+     */
+    public void put(String key, ByteBuf data, String filename, String etag) {
+        int length = data.readableBytes();
+        Entry existing = entries.get(key);
+        if (existing != null && existing.etag.equals(etag)) {
+            return;
+        }
+        if (existing != null) {
+            remove(key);
+        }
+        if (length > maxEntrySize || length > maxSize) {
+            return;
+        }
+        if (size + length > maxSize) {
+            Iterator<Map.Entry<String, Entry>> i =
+                    entries.entrySet().iterator();
+            if (i.hasNext()
+                    && sketch.frequency(key)
+                        <= sketch.frequency(i.next().getKey())) {
+                REJECTIONS.inc();
+                return;
+            }
+            evict(length);
+        }
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(
+                length, length);
+        buffer.writeBytes(data, data.readerIndex(), length);
+        entries.put(key, new Entry(buffer, filename, etag));
+        size += length;
+        SIZE_BYTES.set(size);
+    }
+
+    /**
+     * Releases all cached responses.
+     */
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            entry.data.release();
+        }
+        entries.clear();
+        size = 0;
+        SIZE_BYTES.set(size);
+    }
+
+    /**
+     * Removes and releases a single cached response.
+     */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        size -= entry.data.readableBytes();
+        SIZE_BYTES.set(size);
+        entry.data.release();
+    }
+
+    /**
+     * Evicts least recently used responses until <code>required</code>
+     * bytes fit within the budget.
+     */
+    private void evict(int required) {
+        Iterator<Entry> i = entries.values().iterator();
+        while (size + required > maxSize && i.hasNext()) {
+            Entry entry = i.next();
+            i.remove();
+            size -= entry.data.readableBytes();
+            entry.data.release();
+            EVICTIONS.inc();
+        }
+    }
+
+    /**
+     * Response body and filename retrieved from the cache.
+     */
+    public static class CachedTile {
+
+        /** Response body */
+        public final Buffer data;
+
+        /** Response filename */
+        public final String filename;
+
+        /** Retained duplicate of the cached bytes */
+        private final ByteBuf retained;
+
+        /** Whether the cached bytes have been released */
+        private boolean released = false;
+
+        CachedTile(ByteBuf retained, String filename) {
+            this.data = Buffer.buffer(retained);
+            this.filename = filename;
+            this.retained = retained;
+        }
+
+        /**
+         * Releases the cached bytes.  Safe to call more than once.  Must
+         * not be called until {@link #data} has been written.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                retained.release();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final ByteBuf data;
+
+        private final String filename;
+
+        private final String etag;
+
+        Entry(ByteBuf data, String filename, String etag) {
+            this.data = data;
+            this.filename = filename;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * Count-min sketch of four rows of saturating counters.  All counters
+     * are halved periodically so that the estimate reflects recent
+     * popularity rather than all time popularity.
+     */
+    static class FrequencySketch {
+
+        private static final int[] SEEDS = new int[] {
+            0x97cb3127, 0xb5b1e0b3, 0x7ba1f3e5, 0xc2b2ae35
+        };
+
+        private static final int MAX_COUNT = 15;
+
+        private final int[][] counters;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private int additions = 0;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(
+                    Math.max(16, expectedEntries - 1) << 1);
+            counters = new int[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(
+                        frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (int[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.Collections;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Reply from {@link PixelBufferVerticle} to a tile request.  Large tiles
+ * are streamed as a series of replies each carrying one band of the tile;
+ * the recipient requests the next band by replying to the message carrying
+ * the previous one.
+ */
+public class TileResult {
+
+    /**
+     * Encoded tile, or band of a streamed tile; shared by every response it
+     * is sent to so it must not be modified and its indexes must not be
+     * changed
+     */
+    public final ByteBuf data;
+
+    /** Filename for the tile response */
+    public final String filename;
+
+    /**
+     * Strong entity tag of the tile response, as returned by
+     * {@link TileCtx#etag(long)}, or <code>null</code>
+     */
+    public final String etag;
+
+    /** Total length of the tile response in bytes */
+    public final long length;
+
+    /** Whether this is the whole tile or the last band of a streamed tile */
+    public final boolean last;
+
+    /** Additional headers for the tile response */
+    public final Map<String, String> headers;
+
+    /**
+     * Default constructor.
+     * @param data encoded tile.
+     * @param filename filename for the tile response.
+     * @param etag entity tag of the tile response.
+     */
+    public TileResult(ByteBuf data, String filename, String etag) {
+        this(data, filename, etag, Collections.emptyMap());
+    }
+
+    /**
+     * Constructor for a tile which requires additional response headers.
+     * @param data encoded tile.
+     * @param filename filename for the tile response.
+     * @param etag entity tag of the tile response.
+     * @param headers additional headers for the tile response.
+     */
+    public TileResult(
+            ByteBuf data, String filename, String etag,
+            Map<String, String> headers) {
+        this(data, filename, etag, data.readableBytes(), true, headers);
+    }
+
+    /**
+     * Constructor for one band of a streamed tile.
+     * @param data band of the encoded tile.
+     * @param filename filename for the tile response.
+     * @param etag entity tag of the tile response.
+     * @param length total length of the tile response in bytes.
+     * @param last whether this is the last band.
+     */
+    public TileResult(
+            ByteBuf data, String filename, String etag, long length,
+            boolean last) {
+        this(data, filename, etag, length, last, Collections.emptyMap());
+    }
+
+    TileResult(
+            ByteBuf data, String filename, String etag, long length,
+            boolean last, Map<String, String> headers) {
+        this.data = data;
+        this.filename = filename;
+        this.etag = etag;
+        this.length = length;
+        this.last = last;
+        this.headers = headers;
+    }
+
+    /**
+     * @return <code>true</code> if this is one band of a streamed tile.
+     */
+    public boolean isStreamed() {
+        return !last || length != data.readableBytes();
+    }
+
+}
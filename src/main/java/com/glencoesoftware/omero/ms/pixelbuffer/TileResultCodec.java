@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Event bus codec for {@link TileResult}.  Locally delivered results are
+ * passed by reference so the tile is never copied; results sent across a
+ * cluster are written as a length prefixed filename, a length prefixed
+ * entity tag (a length of -1 if there is none), the total length, the last
+ * band flag, the number of headers followed by each length prefixed header
+ * name and value, and finally a length prefixed tile.
+ */
+public class TileResultCodec implements MessageCodec<TileResult, TileResult> {
+
+    @Override
+    public void encodeToWire(Buffer buffer, TileResult result) {
+        appendString(buffer, result.filename);
+        if (result.etag == null) {
+            buffer.appendInt(-1);
+        } else {
+            appendString(buffer, result.etag);
+        }
+        buffer.appendLong(result.length);
+        buffer.appendByte((byte) (result.last? 1 : 0));
+        buffer.appendInt(result.headers.size());
+        for (Map.Entry<String, String> header : result.headers.entrySet()) {
+            appendString(buffer, header.getKey());
+            appendString(buffer, header.getValue());
+        }
+        buffer.appendInt(result.data.readableBytes());
+        buffer.appendBuffer(Buffer.buffer(result.data));
+    }
+
+    @Override
+    public TileResult decodeFromWire(int pos, Buffer buffer) {
+        String filename = getString(buffer, pos);
+        pos += 4 + buffer.getInt(pos);
+        String etag = null;
+        if (buffer.getInt(pos) < 0) {
+            pos += 4;
+        } else {
+            etag = getString(buffer, pos);
+            pos += 4 + buffer.getInt(pos);
+        }
+        long total = buffer.getLong(pos);
+        pos += 8;
+        boolean last = buffer.getByte(pos) != 0;
+        pos += 1;
+        int count = buffer.getInt(pos);
+        pos += 4;
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            String name = getString(buffer, pos);
+            pos += 4 + buffer.getInt(pos);
+            String value = getString(buffer, pos);
+            pos += 4 + buffer.getInt(pos);
+            headers.put(name, value);
+        }
+        int length = buffer.getInt(pos);
+        pos += 4;
+        ByteBuf data =
+                Unpooled.wrappedBuffer(buffer.getBytes(pos, pos + length));
+        return new TileResult(data, filename, etag, total, last, headers);
+    }
+
+    private static void appendString(Buffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.appendInt(bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    private static String getString(Buffer buffer, int pos) {
+        int length = buffer.getInt(pos);
+        return new String(
+                buffer.getBytes(pos + 4, pos + 4 + length),
+                StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public TileResult transform(TileResult result) {
+        return result;
+    }
+
+    @Override
+    public String name() {
+        return "omero.pixel_buffer.tile_result";
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Dispatches requests to the worker verticles fairly between OMERO
+ * sessions, so that one session requesting many large regions cannot
+ * occupy every worker while interactive viewers wait behind it.
+ * <p>
+ * Each session has its own queue and the queues are served by deficit
+ * round-robin: on its turn a session may dispatch requests up to its
+ * weight, carrying over what it does not use while it has requests
+ * waiting.  No more than <code>maxRunning</code> requests, normally the
+ * number of workers, are dispatched at once and no session may have more
+ * than <code>maxPerSession</code> of them.  A request must be marked
+ * complete, with {@link #complete(String)}, once its reply arrives.
+ * <p>
+ * Within a session's queue requests are dispatched lowest rank first, so
+ * that cheap requests are not held up behind expensive ones.  A request's
+ * rank falls by one for every <code>agingInterval</code> it waits, which
+ * bounds how long an expensive request can be passed over.  As every
+ * waiting request ages at the same rate the aged rank is fixed when the
+ * request is queued.
+ * <p>
+ * Not thread safe; all access must be from the HTTP verticle's event loop.
+ */
+public class TileScheduler {
+
+    private static final Gauge QUEUED = Gauge.build()
+            .name("omero_ms_pixel_buffer_scheduler_queued")
+            .help("Requests waiting to be dispatched to the workers")
+            .register();
+
+    private static final Gauge RUNNING = Gauge.build()
+            .name("omero_ms_pixel_buffer_scheduler_running")
+            .help("Requests dispatched to the workers and not yet replied to")
+            .register();
+
+    private static final Gauge SESSIONS = Gauge.build()
+            .name("omero_ms_pixel_buffer_scheduler_sessions")
+            .help("Sessions with requests waiting or dispatched")
+            .register();
+
+    private static final Counter DISPATCHED = Counter.build()
+            .name("omero_ms_pixel_buffer_scheduler_dispatched_total")
+            .help("Requests dispatched to the workers")
+            .register();
+
+    private static final Counter CAPPED = Counter.build()
+            .name("omero_ms_pixel_buffer_scheduler_capped_total")
+            .help("Turns skipped by sessions at their share of the workers")
+            .register();
+
+    /** Maximum number of requests dispatched at once */
+    private final int maxRunning;
+
+    /** Maximum number of requests of one session dispatched at once */
+    private final int maxPerSession;
+
+    /** Weight of sessions without one of their own */
+    private final double defaultWeight;
+
+    /** Weights by OMERO session key */
+    private final Map<String, Double> weights;
+
+    /** Time waited which lowers a request's rank by one in nanoseconds */
+    private final double agingInterval;
+
+    /** Sequence number of the next request, which breaks ties in rank */
+    private long sequence = 0;
+
+    /** Queues of sessions with requests waiting or dispatched */
+    private final Map<String, SessionQueue> sessions =
+            new HashMap<String, SessionQueue>();
+
+    /** Queues with requests waiting, in round-robin order */
+    private final ArrayDeque<SessionQueue> ring =
+            new ArrayDeque<SessionQueue>();
+
+    /** Requests waiting */
+    private int queued = 0;
+
+    /** Requests dispatched */
+    private int running = 0;
+
+    /** Whether {@link #dispatch()} is on the stack */
+    private boolean dispatching = false;
+
+    /**
+     * Default constructor.
+     * @param maxRunning maximum number of requests dispatched at once.
+     * @param maxPerSession maximum number of requests of one session
+     * dispatched at once.
+     * @param defaultWeight weight of sessions without one of their own.
+     * @param weights weights by OMERO session key.
+     * @param agingInterval time waited which lowers a request's rank by
+     * one in milliseconds.
+     */
+    public TileScheduler(
+            int maxRunning, int maxPerSession, double defaultWeight,
+            Map<String, Double> weights, long agingInterval) {
+        if (maxRunning < 1 || maxPerSession < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid maximums: %d and %d per session",
+                    maxRunning, maxPerSession));
+        }
+        if (defaultWeight <= 0
+                || weights.values().stream().anyMatch(w -> w <= 0)) {
+            throw new IllegalArgumentException("Weights must be positive");
+        }
+        if (agingInterval < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid aging interval: " + agingInterval);
+        }
+        this.maxRunning = maxRunning;
+        this.maxPerSession = maxPerSession;
+        this.defaultWeight = defaultWeight;
+        this.weights = weights;
+        this.agingInterval = agingInterval * 1e6;
+    }
+
+    /**
+     * Queues a request, dispatching it immediately if the session has
+     * capacity and no other session is waiting.
+     * @param sessionKey OMERO session key of the request.
+     * @param rank rank of the request; requests of the session with a
+     * lower rank are dispatched first.
+     * @param task sends the request to the worker verticles.
+     */
+    public void submit(String sessionKey, double rank, Runnable task) {
+        SessionQueue queue = sessions.get(sessionKey);
+        if (queue == null) {
+            queue = new SessionQueue(
+                    weights.getOrDefault(sessionKey, defaultWeight));
+            sessions.put(sessionKey, queue);
+            SESSIONS.set(sessions.size());
+        }
+        if (queue.tasks.isEmpty()) {
+            ring.addLast(queue);
+        }
+        queue.tasks.add(new Task(
+                rank + System.nanoTime() / agingInterval, sequence++, task));
+        QUEUED.set(++queued);
+        dispatch();
+    }
+
+    /**
+     * Marks a dispatched request as complete, freeing its worker for the
+     * next request.
+     * @param sessionKey OMERO session key of the request.
+     */
+    public void complete(String sessionKey) {
+        SessionQueue queue = sessions.get(sessionKey);
+        if (queue == null || queue.running == 0) {
+            throw new IllegalStateException(
+                    "No request of the session is running");
+        }
+        queue.running--;
+        RUNNING.set(--running);
+        if (queue.running == 0 && queue.tasks.isEmpty()) {
+            sessions.remove(sessionKey);
+            SESSIONS.set(sessions.size());
+        }
+        dispatch();
+    }
+
+    /**
+     * Dispatches waiting requests, in deficit round-robin order, until
+     * every worker is busy or every waiting session is at its share.
+     */
+    private void dispatch() {
+        if (dispatching) {
+            // A task completed synchronously; the loop below carries on
+            return;
+        }
+        dispatching = true;
+        try {
+            // Consecutive sessions passed over at their share
+            int capped = 0;
+            while (running < maxRunning && capped < ring.size()) {
+                SessionQueue queue = ring.peekFirst();
+                if (queue.running >= maxPerSession) {
+                    CAPPED.inc();
+                    queue.endTurn();
+                    ring.addLast(ring.pollFirst());
+                    capped++;
+                    continue;
+                }
+                if (!queue.inTurn) {
+                    queue.deficit += queue.weight;
+                    queue.inTurn = true;
+                }
+                if (queue.deficit < 1) {
+                    queue.endTurn();
+                    ring.addLast(ring.pollFirst());
+                    continue;
+                }
+                capped = 0;
+                Runnable task = queue.tasks.poll().task;
+                queue.deficit -= 1;
+                queue.running++;
+                RUNNING.set(++running);
+                QUEUED.set(--queued);
+                DISPATCHED.inc();
+                if (queue.tasks.isEmpty()) {
+                    // Nothing waiting; unused credit is not carried over
+                    ring.pollFirst();
+                    queue.deficit = 0;
+                    queue.inTurn = false;
+                }
+                task.run();
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    /**
+     * Requests of a single session.
+     */
+    private static class SessionQueue {
+
+        /** Requests dispatched per turn */
+        private final double weight;
+
+        /** Requests waiting to be dispatched, lowest aged rank first */
+        private final PriorityQueue<Task> tasks = new PriorityQueue<Task>(
+                Comparator.<Task>comparingDouble(t -> t.key)
+                    .thenComparingLong(t -> t.sequence));
+
+        /** Requests which may still be dispatched this turn */
+        private double deficit = 0;
+
+        /** Whether this turn's credit has been added */
+        private boolean inTurn = false;
+
+        /** Requests dispatched and not yet complete */
+        private int running = 0;
+
+        SessionQueue(double weight) {
+            this.weight = weight;
+        }
+
+        void endTurn() {
+            inTurn = false;
+        }
+    }
+
+    /**
+     * Request waiting to be dispatched.
+     */
+    private static class Task {
+
+        /** Rank, less the time already waited when it was queued */
+        private final double key;
+
+        /** Order in which the request was queued */
+        private final long sequence;
+
+        /** Sends the request to the worker verticles */
+        private final Runnable task;
+
+        Task(double key, long sequence, Runnable task) {
+            this.key = key;
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import omeis.providers.re.data.RegionDef;
+
+/**
+ * A tile which is read, and returned, in bands of whole rows so that the
+ * memory required is bounded by the band size rather than the tile size.
+ * Holds a lease on the pixel buffer until closed.
+ * <p>
+ * Not thread safe; bands must be read one at a time.
+ */
+public class TileStream implements AutoCloseable {
+
+    /** Lease on the pixel buffer to read from */
+    private final PixelBufferCache.Lease lease;
+
+    /** Reader which splits large bands into concurrent reads */
+    private final RegionReader regionReader;
+
+    /** Limits on the resources used by concurrent requests */
+    private final ResourceLimits resourceLimits;
+
+    /** Tile to read */
+    private final TileCtx tileCtx;
+
+    /** Region of the tile, fully specified */
+    private final RegionDef region;
+
+    /** OMERO pixels type of the tile */
+    private final String pixelsType;
+
+    /** Bytes per pixel */
+    private final int bytesPerPixel;
+
+    /** Length of one row of the tile in bytes */
+    private final int rowBytes;
+
+    /** Number of rows read at once */
+    private final int rowsPerBand;
+
+    /** Total length of the stream in bytes */
+    private final long length;
+
+    /** Bytes to return ahead of the first band or <code>null</code> */
+    private ByteBuf header;
+
+    /** Next row to read */
+    private int row = 0;
+
+    /**
+     * Default constructor.
+     * @param lease lease on the pixel buffer to read from, which is closed
+     * along with the stream.
+     * @param regionReader reader which splits large bands into concurrent
+     * reads.
+     * @param resourceLimits limits on the resources used by concurrent
+     * requests.
+     * @param tileCtx tile to read.
+     * @param region region of the tile, fully specified.
+     * @param pixelsType OMERO pixels type of the tile.
+     * @param bytesPerPixel bytes per pixel.
+     * @param bandSize approximate size of each band in bytes.
+     * @param header bytes to return ahead of the first band, such as a
+     * file header, or <code>null</code>.
+     */
+    TileStream(
+            PixelBufferCache.Lease lease, RegionReader regionReader,
+            ResourceLimits resourceLimits, TileCtx tileCtx, RegionDef region,
+            String pixelsType, int bytesPerPixel, int bandSize,
+            ByteBuf header) {
+        this.lease = lease;
+        this.regionReader = regionReader;
+        this.resourceLimits = resourceLimits;
+        this.tileCtx = tileCtx;
+        this.region = region;
+        this.pixelsType = pixelsType;
+        this.bytesPerPixel = bytesPerPixel;
+        this.rowBytes = region.getWidth() * bytesPerPixel;
+        this.rowsPerBand = Math.max(1, bandSize / Math.max(1, rowBytes));
+        this.header = header;
+        long length = (long) rowBytes * region.getHeight();
+        if (header != null) {
+            length += header.readableBytes();
+        }
+        this.length = length;
+    }
+
+    /**
+     * @return Total length of the stream in bytes.
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return <code>true</code> if there are bands left to read.
+     */
+    public boolean hasNext() {
+        return row < region.getHeight();
+    }
+
+    /**
+     * Reads the next band.
+     * @return The band, preceded by the header if it is the first.
+     * @throws IOException If there was an error reading the pixel data.
+     * @throws CancellationException If the request has been cancelled.
+     */
+    public ByteBuf next() throws IOException {
+        tileCtx.checkCancelled(TileMetrics.READ);
+        int rows = Math.min(rowsPerBand, region.getHeight() - row);
+        // Handed off to the response so cannot be reused
+        byte[] band = new byte[rows * rowBytes];
+        long start = System.nanoTime();
+        try (ResourceLimits.Permit permit = resourceLimits.acquire(
+                ResourceLimits.Resource.FILESYSTEM)) {
+            regionReader.read(
+                    lease.getPixelBuffer(), tileCtx.z, tileCtx.c, tileCtx.t,
+                    region.getX(), region.getY() + row, region.getWidth(),
+                    rows, bytesPerPixel, band, tileCtx::isCancelled);
+        } catch (CancellationException e) {
+            TileMetrics.cancelled(TileMetrics.READ, tileCtx);
+            throw e;
+        }
+        TileMetrics.observe(TileMetrics.READ, tileCtx, pixelsType, start);
+        TileMetrics.read(tileCtx, pixelsType, band.length);
+        row += rows;
+        ByteBuf data = Unpooled.wrappedBuffer(band);
+        if (header != null) {
+            data = Unpooled.wrappedBuffer(header, data);
+            header = null;
+        }
+        return data;
+    }
+
+    @Override
+    public void close() {
+        lease.close();
+    }
+
+}
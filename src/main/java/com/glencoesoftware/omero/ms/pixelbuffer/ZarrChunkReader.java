@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
+
+import com.glencoesoftware.omero.zarr.ZarrPixelBuffer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.prometheus.client.Counter;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import ome.io.nio.PixelBuffer;
+import ome.model.core.Image;
+import ome.model.core.Pixels;
+import omeis.providers.re.data.RegionDef;
+
+/**
+ * Reads single chunks of NGFF (OME-Zarr) Images exactly as they are
+ * stored, without decompressing them, for tiles which line up exactly with
+ * the chunk grid of a resolution level.  The codec, data type and shape
+ * needed to decode a chunk are returned alongside it as response headers:
+ * <ul>
+ * <li><code>X-Zarr-Compressor</code>: the <code>compressor</code> of the
+ * array as JSON, <code>null</code> if uncompressed</li>
+ * <li><code>X-Zarr-Filters</code>: the <code>filters</code> of the array as
+ * JSON, if any</li>
+ * <li><code>X-Zarr-Dtype</code>: the <code>dtype</code> of the array</li>
+ * <li><code>X-Zarr-Order</code>: the memory layout of the chunk</li>
+ * <li><code>X-Zarr-Chunk-Shape</code>: the shape of the stored chunk, which
+ * at the edges of the array is larger than the tile</li>
+ * <li><code>X-Zarr-Fill-Value</code>: present, with an empty body, if the
+ * chunk has never been written</li>
+ * </ul>
+ * The fileset is located through the {@link ZarrPixelBuffer} which the
+ * pixels service opened for the Image, so that chunks are only ever read
+ * from the same arrays as decompressed tiles.  Only Zarr v2 arrays on the
+ * local filesystem, with five dimensions and chunks a single plane deep,
+ * are supported; for anything else no chunk is read and a normal tile
+ * should be served instead.  Array metadata is cached.
+ * <p>
+ * Instances are thread safe.
+ */
+public class ZarrChunkReader {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ZarrChunkReader.class);
+
+    private static final Counter CHUNKS = Counter.build()
+            .name("omero_ms_pixel_buffer_zarr_chunks_total")
+            .help("Zarr chunks returned without decompression")
+            .register();
+
+    /**
+     * <code>ExternalInfo.entityType</code> of Images stored as NGFF, as
+     * recognized by the pixels service
+     */
+    public static final String NGFF_ENTITY_TYPE =
+            "com.glencoesoftware.ngff:multiscales";
+
+    /** Parsed <code>.zattrs</code> and <code>.zarray</code> by path */
+    private final ExpiringCache<Path, JsonObject> metadataCache;
+
+    /**
+     * Default constructor.
+     * @param maxSize maximum number of metadata files to cache.
+     * @param ttl time after which cached metadata is reread in
+     * milliseconds.
+     */
+    public ZarrChunkReader(int maxSize, long ttl) {
+        metadataCache = new ExpiringCache<Path, JsonObject>(maxSize, ttl);
+    }
+
+    /**
+     * Reads the stored chunk which the given region covers exactly.
+     * @param pixelBuffer pixel buffer open on the Image, at the requested
+     * resolution level.
+     * @param pixels {@link Pixels} of the Image.
+     * @param resolution OMERO resolution level or <code>null</code> for
+     * the full resolution.
+     * @param z Z section.
+     * @param c channel.
+     * @param t timepoint.
+     * @param region region of the tile; its width and height must be
+     * filled in.
+     * @return See above or <code>null</code> if the pixel buffer is not
+     * backed by a supported NGFF fileset.
+     * @throws IllegalArgumentException If the region is not exactly one
+     * chunk.
+     * @throws IOException If there was an error reading the chunk or the
+     * array metadata.
+     */
+    public Chunk read(
+            PixelBuffer pixelBuffer, Pixels pixels, Integer resolution,
+            int z, int c, int t, RegionDef region) throws IOException {
+        Path root = rootPath(pixelBuffer);
+        if (root == null) {
+            return null;
+        }
+        Path array;
+        JsonObject zarray;
+        try {
+            array = arrayPath(root, pixels.getImage(), resolution);
+            if (array == null) {
+                return null;
+            }
+            zarray = readJson(array.resolve(".zarray"));
+        } catch (NoSuchFileException e) {
+            // Not on the local filesystem or not Zarr v2
+            log.debug("No Zarr v2 metadata for Image:{}",
+                    pixels.getImage().getId(), e);
+            return null;
+        }
+        if (zarray.getInteger("zarr_format", 0) != 2) {
+            log.debug("Unsupported Zarr format: {}",
+                    zarray.getValue("zarr_format"));
+            return null;
+        }
+        JsonArray shape = zarray.getJsonArray("shape");
+        JsonArray chunks = zarray.getJsonArray("chunks");
+        if (shape == null || chunks == null
+                || shape.size() != 5 || chunks.size() != 5) {
+            log.debug("Array is not five dimensional: {}", array);
+            return null;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (chunks.getInteger(i) != 1) {
+                log.debug("Chunks span more than one plane: {}", array);
+                return null;
+            }
+        }
+        int sizeY = shape.getInteger(3);
+        int sizeX = shape.getInteger(4);
+        int chunkY = chunks.getInteger(3);
+        int chunkX = chunks.getInteger(4);
+        int x = region.getX();
+        int y = region.getY();
+        if (x < 0 || y < 0 || x % chunkX != 0 || y % chunkY != 0
+                || x >= sizeX || y >= sizeY
+                || region.getWidth() != Math.min(chunkX, sizeX - x)
+                || region.getHeight() != Math.min(chunkY, sizeY - y)) {
+            throw new IllegalArgumentException(String.format(
+                    "Region %s does not match a %dx%d chunk",
+                    region, chunkX, chunkY));
+        }
+
+        String separator = zarray.getString("dimension_separator", ".");
+        String key = String.join(separator,
+                String.valueOf(t), String.valueOf(c), String.valueOf(z),
+                String.valueOf(y / chunkY), String.valueOf(x / chunkX));
+        Map<String, String> headers = new HashMap<String, String>();
+        Object compressor = zarray.getValue("compressor");
+        headers.put("X-Zarr-Compressor", compressor == null?
+                "null" : ((JsonObject) compressor).encode());
+        JsonArray filters = zarray.getJsonArray("filters");
+        if (filters != null && !filters.isEmpty()) {
+            headers.put("X-Zarr-Filters", filters.encode());
+        }
+        headers.put("X-Zarr-Dtype", zarray.getString("dtype"));
+        headers.put("X-Zarr-Order", zarray.getString("order", "C"));
+        headers.put("X-Zarr-Chunk-Shape", join(chunks));
+
+        ByteBuf data;
+        try {
+            data = Unpooled.wrappedBuffer(
+                    Files.readAllBytes(array.resolve(key)));
+        } catch (NoSuchFileException e) {
+            // Never written; the client fills the tile itself
+            headers.put("X-Zarr-Fill-Value",
+                    String.valueOf(zarray.getValue("fill_value")));
+            data = Unpooled.EMPTY_BUFFER;
+        }
+        CHUNKS.inc();
+        log.debug("Read chunk {} of {}", key, array);
+        return new Chunk(data, headers);
+    }
+
+    /**
+     * @return Path of the array holding the given resolution level of an
+     * Image or <code>null</code> if the fileset has no multiscales
+     * metadata.
+     */
+    private Path arrayPath(Path root, Image image, Integer resolution)
+            throws IOException {
+        JsonObject zattrs = readJson(root.resolve(".zattrs"));
+        if (!zattrs.containsKey("multiscales")) {
+            // Root of a fileset; the Image is one of its series
+            root = root.resolve(String.valueOf(image.getSeries()));
+            zattrs = readJson(root.resolve(".zattrs"));
+        }
+        JsonArray multiscales = zattrs.getJsonArray("multiscales");
+        if (multiscales == null || multiscales.isEmpty()) {
+            log.debug("No multiscales metadata: {}", root);
+            return null;
+        }
+        JsonArray datasets =
+                multiscales.getJsonObject(0).getJsonArray("datasets");
+        // OMERO resolution levels count up from the smallest
+        int levels = datasets.size();
+        int index = resolution == null? 0 : levels - 1 - resolution;
+        if (index < 0 || index >= levels) {
+            throw new IllegalArgumentException(
+                    "Invalid resolution level: " + resolution);
+        }
+        return root.resolve(datasets.getJsonObject(index).getString("path"));
+    }
+
+    /**
+     * @return Local path of the NGFF fileset a pixel buffer was opened on
+     * or <code>null</code> if it is not a {@link ZarrPixelBuffer} or its
+     * location is not a local path.
+     */
+    private static Path rootPath(PixelBuffer pixelBuffer) {
+        if (!(pixelBuffer instanceof ZarrPixelBuffer)) {
+            return null;
+        }
+        try {
+            String path = pixelBuffer.getPath();
+            return path == null? null : Paths.get(path);
+        } catch (InvalidPathException | UnsupportedOperationException e) {
+            log.debug("Cannot resolve Zarr root locally", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a JSON metadata file, from the cache if it has been read
+     * recently.
+     */
+    private JsonObject readJson(Path path) throws IOException {
+        JsonObject json = metadataCache.get(path);
+        if (json == null) {
+            json = new JsonObject(new String(
+                    Files.readAllBytes(path), StandardCharsets.UTF_8));
+            metadataCache.put(path, json);
+        }
+        return json;
+    }
+
+    private static String join(JsonArray values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values.getValue(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A stored chunk and the headers describing how to decode it.
+     */
+    public static class Chunk {
+
+        /** Chunk exactly as stored; empty if it has never been written */
+        public final ByteBuf data;
+
+        /** Headers describing how to decode the chunk */
+        public final Map<String, String> headers;
+
+        Chunk(ByteBuf data, Map<String, String> headers) {
+            this.data = data;
+            this.headers = headers;
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+public class PngEncoderTest {
+
+    /** Sizes including odd widths and single row and column tiles */
+    private static final int[][] SIZES = new int[][] {
+        { 1, 1 }, { 1, 7 }, { 7, 1 }, { 13, 5 }, { 257, 31 }, { 256, 256 }
+    };
+
+    @DataProvider(name = "tiles")
+    public Object[][] tiles() {
+        List<Object[]> tiles = new ArrayList<Object[]>();
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            for (int bytesPerPixel : new int[] { 1, 2 }) {
+                for (int[] size : SIZES) {
+                    tiles.add(new Object[] {
+                        filter, bytesPerPixel, size[0], size[1]
+                    });
+                }
+            }
+        }
+        return tiles.toArray(new Object[0][]);
+    }
+
+    @Test(dataProvider = "tiles")
+    public void testRoundTrip(
+            PngEncoder.Filter filter, int bytesPerPixel, int width,
+            int height) throws IOException {
+        byte[] tile = random(width * height * bytesPerPixel, width);
+        PngEncoder encoder =
+                new PngEncoder(Deflater.DEFAULT_COMPRESSION, filter);
+        assertPixels(
+                decode(encoder.encode(tile, width, height, bytesPerPixel)),
+                tile, width, height, bytesPerPixel);
+    }
+
+    @Test
+    public void testCompressionLevels() throws IOException {
+        int width = 65;
+        int height = 33;
+        byte[] tile = random(width * height * 2, height);
+        for (int level = Deflater.NO_COMPRESSION;
+                level <= Deflater.BEST_COMPRESSION; level++) {
+            PngEncoder encoder =
+                    new PngEncoder(level, PngEncoder.Filter.ADAPTIVE);
+            assertPixels(
+                    decode(encoder.encode(tile, width, height, 2)),
+                    tile, width, height, 2);
+        }
+    }
+
+    @Test
+    public void testEncoderReuse() throws IOException {
+        // State is reused per thread; a large tile must not leave
+        // anything behind for a smaller one
+        PngEncoder encoder =
+                new PngEncoder(Deflater.BEST_SPEED, PngEncoder.Filter.PAETH);
+        byte[] large = random(512 * 512 * 2, 1);
+        byte[] small = random(9 * 3, 2);
+        encoder.encode(large, 512, 512, 2).release();
+        assertPixels(decode(encoder.encode(small, 9, 3, 1)), small, 9, 3, 1);
+    }
+
+    @Test
+    public void testReleaseThreadState() throws IOException {
+        // Released state is recreated by the next encode on the thread
+        PngEncoder encoder =
+                new PngEncoder(Deflater.BEST_SPEED, PngEncoder.Filter.UP);
+        byte[] tile = random(17 * 5, 3);
+        encoder.encode(tile, 17, 5, 1).release();
+        PngEncoder.releaseThreadState();
+        PngEncoder.releaseThreadState();
+        assertPixels(decode(encoder.encode(tile, 17, 5, 1)), tile, 17, 5, 1);
+    }
+
+    @Test(expectedExceptions = CancellationException.class)
+    public void testCancelled() {
+        new PngEncoder(Deflater.BEST_SPEED, PngEncoder.Filter.NONE).encode(
+                new byte[16 * 16], 16, 16, 1, () -> true);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        new PngEncoder(10, PngEncoder.Filter.NONE);
+    }
+
+    @Test
+    public void testSupports() {
+        PngEncoder encoder =
+                new PngEncoder(Deflater.BEST_SPEED, PngEncoder.Filter.NONE);
+        Assert.assertTrue(encoder.supports("uint8"));
+        Assert.assertTrue(encoder.supports("int16"));
+        Assert.assertFalse(encoder.supports("uint32"));
+        Assert.assertFalse(encoder.supports("float"));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] tile = new byte[length];
+        new Random(seed).nextBytes(tile);
+        return tile;
+    }
+
+    private static BufferedImage decode(ByteBuf png) throws IOException {
+        try {
+            BufferedImage image = ImageIO.read(
+                    new ByteArrayInputStream(ByteBufUtil.getBytes(png)));
+            Assert.assertNotNull(image, "Not a readable PNG");
+            return image;
+        } finally {
+            png.release();
+        }
+    }
+
+    /**
+     * Compares a decoded image with the big-endian tile it was encoded
+     * from.
+     */
+    static void assertPixels(
+            BufferedImage image, byte[] tile, int width, int height,
+            int bytesPerPixel) {
+        Assert.assertEquals(image.getWidth(), width);
+        Assert.assertEquals(image.getHeight(), height);
+        Raster raster = image.getRaster();
+        Assert.assertEquals(raster.getNumBands(), 1);
+        Assert.assertEquals(
+                raster.getSampleModel().getSampleSize(0), bytesPerPixel * 8);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = (y * width + x) * bytesPerPixel;
+                int expected = tile[offset] & 0xff;
+                if (bytesPerPixel == 2) {
+                    expected = expected << 8 | tile[offset + 1] & 0xff;
+                }
+                Assert.assertEquals(
+                        raster.getSample(x, y, 0), expected,
+                        "Pixel " + x + "," + y);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.github.luben.zstd.Zstd;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import loci.formats.FormatException;
+
+public class TiffEncoderTest {
+
+    /** Sizes including odd widths and single row and column tiles */
+    private static final int[][] SIZES = new int[][] {
+        { 1, 1 }, { 1, 7 }, { 7, 1 }, { 13, 5 }, { 257, 31 }, { 256, 256 }
+    };
+
+    @DataProvider(name = "tiles")
+    public Object[][] tiles() {
+        List<Object[]> tiles = new ArrayList<Object[]>();
+        for (TiffEncoder.Compression compression
+                : TiffEncoder.Compression.values()) {
+            for (String pixelsType : new String[] { "uint8", "uint16" }) {
+                for (int[] size : SIZES) {
+                    tiles.add(new Object[] {
+                        compression, pixelsType, size[0], size[1]
+                    });
+                }
+            }
+        }
+        return tiles.toArray(new Object[0][]);
+    }
+
+    @Test(dataProvider = "tiles")
+    public void testRoundTrip(
+            TiffEncoder.Compression compression, String pixelsType,
+            int width, int height) throws FormatException, IOException {
+        int bytesPerPixel = pixelsType.equals("uint8")? 1 : 2;
+        byte[] tile = random(width * height * bytesPerPixel, width);
+        byte[] tiff = bytes(new TiffEncoder(compression, null).encode(
+                tile, width, height, pixelsType));
+
+        Map<Integer, Integer> ifd = readIfd(tiff);
+        Assert.assertEquals(ifd.get(256), Integer.valueOf(width));
+        Assert.assertEquals(ifd.get(257), Integer.valueOf(height));
+        Assert.assertEquals(ifd.get(258), Integer.valueOf(bytesPerPixel * 8));
+        Assert.assertEquals(ifd.get(339), Integer.valueOf(1));
+        int stripOffset = ifd.get(273);
+        int stripLength = ifd.get(279);
+        Assert.assertEquals(stripOffset + stripLength, tiff.length);
+
+        if (compression == TiffEncoder.Compression.ZSTD) {
+            // Not supported by the JDK's TIFF reader
+            Assert.assertEquals(ifd.get(259), Integer.valueOf(50000));
+            byte[] strip = Arrays.copyOfRange(tiff, stripOffset, tiff.length);
+            Assert.assertEquals(Zstd.decompress(strip, tile.length), tile);
+            return;
+        }
+        BufferedImage image =
+                ImageIO.read(new ByteArrayInputStream(tiff));
+        Assert.assertNotNull(image, "Not a readable TIFF");
+        PngEncoderTest.assertPixels(
+                image, tile, width, height, bytesPerPixel);
+    }
+
+    @Test
+    public void testDeflateLevels() throws FormatException, IOException {
+        int width = 65;
+        int height = 33;
+        byte[] tile = random(width * height * 2, height);
+        for (int level = 0; level <= 9; level++) {
+            byte[] tiff = bytes(
+                    new TiffEncoder(TiffEncoder.Compression.DEFLATE, level)
+                        .encode(tile, width, height, "uint16"));
+            PngEncoderTest.assertPixels(
+                    ImageIO.read(new ByteArrayInputStream(tiff)),
+                    tile, width, height, 2);
+        }
+    }
+
+    @Test
+    public void testReleaseThreadState() throws FormatException, IOException {
+        // Released state is recreated by the next encode on the thread
+        TiffEncoder encoder =
+                new TiffEncoder(TiffEncoder.Compression.DEFLATE, null);
+        byte[] tile = random(17 * 5, 3);
+        encoder.encode(tile, 17, 5, "uint8").release();
+        TiffEncoder.releaseThreadState();
+        TiffEncoder.releaseThreadState();
+        PngEncoderTest.assertPixels(
+                ImageIO.read(new ByteArrayInputStream(
+                        bytes(encoder.encode(tile, 17, 5, "uint8")))),
+                tile, 17, 5, 1);
+    }
+
+    @Test
+    public void testHeaderMatchesUncompressed() throws FormatException {
+        // Streamed tiles are the header followed by the raw strip
+        int width = 31;
+        int height = 9;
+        byte[] tile = random(width * height * 2, 3);
+        TiffEncoder encoder =
+                new TiffEncoder(TiffEncoder.Compression.NONE, null);
+        Assert.assertTrue(encoder.isUncompressed());
+        byte[] header = bytes(
+                encoder.encodeHeader(width, height, 2, "uint16"));
+        Assert.assertEquals(header.length, TiffEncoder.HEADER_LENGTH);
+        byte[] tiff = bytes(encoder.encode(tile, width, height, "uint16"));
+        byte[] streamed = Arrays.copyOf(header, header.length + tile.length);
+        System.arraycopy(tile, 0, streamed, header.length, tile.length);
+        Assert.assertEquals(streamed, tiff);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidDeflateLevel() {
+        new TiffEncoder(TiffEncoder.Compression.DEFLATE, 10);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedPixelsType() throws FormatException {
+        new TiffEncoder(TiffEncoder.Compression.NONE, null).encode(
+                new byte[1], 1, 1, "bit");
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] tile = new byte[length];
+        new Random(seed).nextBytes(tile);
+        return tile;
+    }
+
+    private static byte[] bytes(ByteBuf buffer) {
+        try {
+            return ByteBufUtil.getBytes(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Reads the single valued entries of the first IFD of a big-endian
+     * TIFF.
+     * @return Values by tag.
+     */
+    private static Map<Integer, Integer> readIfd(byte[] tiff) {
+        ByteBuffer in = ByteBuffer.wrap(tiff);
+        Assert.assertEquals(in.get(), (byte) 'M');
+        Assert.assertEquals(in.get(), (byte) 'M');
+        Assert.assertEquals(in.getShort(), (short) 42);
+        in.position(in.getInt());
+        Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+        int count = in.getShort();
+        for (int i = 0; i < count; i++) {
+            int tag = in.getShort() & 0xffff;
+            int type = in.getShort();
+            Assert.assertEquals(in.getInt(), 1, "Count of tag " + tag);
+            int value = type == 3? in.getShort() & 0xffff : in.getInt();
+            if (type == 3) {
+                in.getShort();
+            }
+            entries.put(tag, value);
+        }
+        Assert.assertEquals(in.getInt(), 0, "Further IFDs");
+        return entries;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.pixelbuffer;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.IllegalReferenceCountException;
+
+public class TileResponseCacheTest {
+
+    private static final int LENGTH = 1024;
+
+    private static final String ETAG = "\"1\"";
+
+    @Test
+    public void testHit() {
+        TileResponseCache cache = new TileResponseCache(4 * LENGTH, LENGTH);
+        Assert.assertFalse(cache.touch("a"));
+        cache.put("a", tile(LENGTH, 7), "a.png", ETAG);
+        Assert.assertTrue(cache.touch("a"));
+        TileResponseCache.CachedTile cachedTile = cache.get("a", ETAG);
+        Assert.assertNotNull(cachedTile);
+        Assert.assertEquals(cachedTile.filename, "a.png");
+        Assert.assertEquals(cachedTile.data.length(), LENGTH);
+        Assert.assertEquals(cachedTile.data.getByte(LENGTH - 1), (byte) 7);
+        cachedTile.release();
+        cache.clear();
+    }
+
+    @Test
+    public void testStaleEntityTag() {
+        TileResponseCache cache = new TileResponseCache(4 * LENGTH, LENGTH);
+        cache.touch("a");
+        cache.put("a", tile(LENGTH, 7), "a.png", ETAG);
+        Assert.assertNull(cache.get("a", "\"2\""));
+        // Removed rather than left to be evicted
+        Assert.assertFalse(cache.touch("a"));
+        cache.clear();
+    }
+
+    @Test
+    public void testTooLarge() {
+        TileResponseCache cache = new TileResponseCache(4 * LENGTH, LENGTH);
+        cache.touch("a");
+        cache.put("a", tile(LENGTH + 1, 7), "a.png", ETAG);
+        Assert.assertFalse(cache.touch("a"));
+        cache.clear();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        TileResponseCache cache = new TileResponseCache(3 * LENGTH, LENGTH);
+        for (String key : new String[] { "a", "b", "c" }) {
+            cache.touch(key);
+            cache.put(key, tile(LENGTH, 1), key, ETAG);
+        }
+        // Requested more often than "a", the least recently used
+        for (int i = 0; i < 3; i++) {
+            cache.touch("d");
+        }
+        cache.put("d", tile(LENGTH, 2), "d", ETAG);
+        Assert.assertFalse(cache.touch("a"));
+        Assert.assertTrue(cache.touch("b"));
+        Assert.assertTrue(cache.touch("c"));
+        Assert.assertTrue(cache.touch("d"));
+        cache.clear();
+    }
+
+    @Test
+    public void testRejectsInfrequent() {
+        TileResponseCache cache = new TileResponseCache(3 * LENGTH, LENGTH);
+        for (String key : new String[] { "a", "b", "c" }) {
+            cache.touch(key);
+            cache.touch(key);
+            cache.put(key, tile(LENGTH, 1), key, ETAG);
+        }
+        // A one-off request does not displace anything
+        cache.touch("d");
+        cache.put("d", tile(LENGTH, 2), "d", ETAG);
+        Assert.assertFalse(cache.touch("d"));
+        Assert.assertTrue(cache.touch("a"));
+        Assert.assertTrue(cache.touch("b"));
+        Assert.assertTrue(cache.touch("c"));
+        cache.clear();
+    }
+
+    @Test
+    public void testEvictedWhileWritten() {
+        TileResponseCache cache = new TileResponseCache(LENGTH, LENGTH);
+        cache.touch("a");
+        cache.put("a", tile(LENGTH, 7), "a.png", ETAG);
+        TileResponseCache.CachedTile cachedTile = cache.get("a", ETAG);
+        cache.touch("b");
+        cache.touch("b");
+        cache.put("b", tile(LENGTH, 8), "b.png", ETAG);
+        Assert.assertFalse(cache.touch("a"));
+        // Still readable until released
+        Assert.assertEquals(cachedTile.data.getByte(LENGTH - 1), (byte) 7);
+        cachedTile.release();
+        cachedTile.release();
+        cache.clear();
+    }
+
+    @Test(expectedExceptions = IllegalReferenceCountException.class)
+    public void testFreedOnceEvictedAndReleased() {
+        TileResponseCache cache = new TileResponseCache(LENGTH, LENGTH);
+        cache.touch("a");
+        cache.put("a", tile(LENGTH, 7), "a.png", ETAG);
+        TileResponseCache.CachedTile cachedTile = cache.get("a", ETAG);
+        cache.clear();
+        cachedTile.release();
+        cachedTile.data.getByte(0);
+    }
+
+    private static ByteBuf tile(int length, int value) {
+        byte[] tile = new byte[length];
+        Arrays.fill(tile, (byte) value);
+        return Unpooled.wrappedBuffer(tile);
+    }
+
+}